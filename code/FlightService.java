@@ -1,29 +1,45 @@
 package edu.uw.cs;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
 
+  // tokenizers of the threads that execute commands given as strings
+  private static final ThreadLocal<CommandTokenizer> TOKENIZERS = new ThreadLocal<CommandTokenizer>() {
+    @Override
+    protected CommandTokenizer initialValue() {
+      return new CommandTokenizer();
+    }
+  };
+
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(Query q, String command) {
-    String[] tokens = tokenize(command.trim());
+    CommandTokenizer tokens = TOKENIZERS.get();
+    tokens.tokenize(command);
+    return execute(q, tokens);
+  }
+
+  /**
+   * Execute the command last split by the given tokenizer
+   */
+  static String execute(Query q, CommandTokenizer tokens) {
     String response;
 
     // empty input
-    if (tokens.length == 0) {
+    if (tokens.count() == 0) {
       response = "Please enter a command";
     }
 
     // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
+    else if (tokens.token(0).equals("login")) {
+      if (tokens.count() == 3) {
+        String username = tokens.token(1);
+        String password = tokens.token(2);
         response = q.transaction_login(username, password);
       } else {
         response = "Error: Please provide a username and password";
@@ -31,11 +47,11 @@ public class FlightService {
     }
 
     // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
+    else if (tokens.token(0).equals("create")) {
+      if (tokens.count() == 4) {
+        String username = tokens.token(1);
+        String password = tokens.token(2);
+        int initAmount = Integer.parseInt(tokens.token(3));
         response = q.transaction_createCustomer(username, password, initAmount);
       } else {
         response = "Error: Please provide a username, password, and initial amount in the account";
@@ -43,14 +59,14 @@ public class FlightService {
     }
 
     // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
+    else if (tokens.token(0).equals("search")) {
+      if (tokens.count() == 6) {
+        String originCity = tokens.token(1);
+        String destinationCity = tokens.token(2);
+        boolean direct = tokens.token(3).equals("1");
         try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
+          int day = Integer.valueOf(tokens.token(4));
+          int count = Integer.valueOf(tokens.token(5));
           response = q.transaction_search(originCity, destinationCity, direct, day, count);
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
@@ -60,10 +76,27 @@ public class FlightService {
       }
     }
 
+    // skyline
+    else if (tokens.token(0).equals("skyline")) {
+      if (tokens.count() == 5) {
+        String originCity = tokens.token(1);
+        String destinationCity = tokens.token(2);
+        boolean direct = tokens.token(3).equals("1");
+        try {
+          int day = Integer.valueOf(tokens.token(4));
+          response = q.transaction_skyline(originCity, destinationCity, direct, day);
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
+      } else {
+        response = "Error: Please provide all skyline parameters <origin_city> <destination_city> <direct> <date>";
+      }
+    }
+
     // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
+    else if (tokens.token(0).equals("book")) {
+      if (tokens.count() == 2) {
+        int itinerary_id = Integer.parseInt(tokens.token(1));
         response = q.transaction_book(itinerary_id);
       } else {
         response = "Error: Please provide an itinerary_id";
@@ -71,14 +104,14 @@ public class FlightService {
     }
 
     // reservations
-    else if (tokens[0].equals("reservations")) {
+    else if (tokens.token(0).equals("reservations")) {
       response = q.transaction_reservations();
     }
 
     // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
+    else if (tokens.token(0).equals("pay")) {
+      if (tokens.count() == 2) {
+        int reservation_id = Integer.parseInt(tokens.token(1));
         response = q.transaction_pay(reservation_id);
       } else {
         response = "Error: Please provide a reservation_id";
@@ -86,23 +119,28 @@ public class FlightService {
     }
 
     // cancel
-    else if (tokens[0].equals("cancel")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
+    else if (tokens.token(0).equals("cancel")) {
+      if (tokens.count() == 2) {
+        int reservation_id = Integer.parseInt(tokens.token(1));
         response = q.transaction_cancel(reservation_id);
       } else {
         response = "Error: Please provide a reservation_id";
       }
     }
 
+    // stats
+    else if (tokens.token(0).equals("stats")) {
+      response = q.stats();
+    }
+
     // quit
-    else if (tokens[0].equals("quit")) {
+    else if (tokens.token(0).equals("quit")) {
       response = "Goodbye\n";
     }
 
     // unknown command
     else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+      response = "Error: unrecognized command '" + tokens.token(0) + "'";
     }
 
     return response;
@@ -110,17 +148,47 @@ public class FlightService {
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL. With {@code --server}, serves concurrent sessions over a
+   * local socket instead, see {@link FlightServer}. With
+   * {@code --batch [file]}, executes the commands of the file, or of the
+   * standard input, and prints only the responses, see {@link #batch}.
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    Properties config = Query.loadConfig();
+    if (args.length > 0 && args[0].equals("--server")) {
+      new FlightServer(config).serve();
+      return;
+    }
+
     /* prepare the database connection stuff */
     Query q = new Query();
     q.openConnection();
     q.prepareStatements();
-    menu(q);
+    StringDictionary.seed(config);
+    String snapshot = config.getProperty("flights.snapshot", "");
+    if (!snapshot.isEmpty()) {
+      q.openFlightSnapshot(snapshot);
+    } else if (Boolean.parseBoolean(config.getProperty("flights.search_index", "false"))) {
+      q.loadFlightIndex();
+    }
+    if (Boolean.parseBoolean(config.getProperty("flights.seat_inventory", "false"))) {
+      q.startSeatInventory();
+    }
+    q.openBestItineraries();
+    if (args.length > 0 && args[0].equals("--batch")) {
+      InputStream in = args.length > 1 ? new FileInputStream(args[1]) : System.in;
+      Writer out = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8);
+      try {
+        batch(q, new InputStreamReader(in, StandardCharsets.UTF_8), out);
+      } finally {
+        in.close();
+      }
+    } else {
+      menu(q);
+    }
     q.closeConnection();
   }
 
@@ -132,46 +200,80 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(Query q) throws IOException {
-    while (true) {
-      // print the command options
-      System.out.println();
-      System.out.println(" *** Please enter one of the following commands *** ");
-      System.out.println("> create <username> <password> <initial amount>");
-      System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
-      System.out.println("> book <itinerary id>");
-      System.out.println("> pay <reservation id>");
-      System.out.println("> reservations");
-      System.out.println("> cancel <reservation id>");
-      System.out.println("> quit");
+    // print the command options
+    System.out.println();
+    System.out.println(" *** Please enter one of the following commands *** ");
+    System.out.println("> create <username> <password> <initial amount>");
+    System.out.println("> login <username> <password>");
+    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> skyline <origin city> <destination city> <direct> <day of the month>");
+    System.out.println("> book <itinerary id>");
+    System.out.println("> pay <reservation id>");
+    System.out.println("> reservations");
+    System.out.println("> cancel <reservation id>");
+    System.out.println("> stats");
+    System.out.println("> quit");
 
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+    while (true) {
       // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
       String command = r.readLine();
+      if (command == null) {
+        break;
+      }
 
       // execute the given input command
       String response = execute(q, command);
       System.out.print(response);
+      if (!response.endsWith("\n")) {
+        System.out.println();
+      }
       if (response.equals("Goodbye\n")) {
         break;
       }
     }
   }
 
+  /**
+   * Executes one command per line of {@code in} until its end or a
+   * {@code quit}, and writes each response to {@code out}, ended by a line
+   * break, without prompts or menus. The responses are buffered and only
+   * flushed when the next command has not arrived yet, so a file runs without
+   * a system call per command and a program driving a pipe still gets each
+   * response before it sends the next command.
+   */
+  static void batch(Query q, Reader in, Writer out) throws IOException {
+    CommandTokenizer tokens = new CommandTokenizer();
+    Writer buffered = new BufferedWriter(out, 1 << 16);
+    while (tokens.readLine(in)) {
+      tokens.tokenizeLine();
+      String response;
+      try {
+        response = execute(q, tokens);
+      } catch (NumberFormatException e) {
+        response = "Failed to parse integer\n";
+      }
+      buffered.write(response);
+      if (!response.endsWith("\n")) {
+        buffered.write('\n');
+      }
+      if (response.equals("Goodbye\n")) {
+        break;
+      }
+      if (!tokens.ready(in)) {
+        buffered.flush();
+      }
+    }
+    buffered.flush();
+  }
+
   /**
    * Tokenize a string into a string array
    */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
+  static String[] tokenize(String command) {
+    CommandTokenizer tokens = TOKENIZERS.get();
+    tokens.tokenize(command);
+    return tokens.toArray();
   }
 }
@@ -0,0 +1,246 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The embedded database every benchmark of a JVM runs against, created on first
+ * use.
+ *
+ * Its Flights table is generated from a fixed seed, so every run and every fork
+ * sees the same rows. There are {@link #HUBS} hub cities with flights between
+ * every pair of hubs, and {@link #SPOKES} spoke cities each served by three
+ * neighbouring hubs only: searches between two hubs find direct flights,
+ * searches between two spokes only one-hop itineraries. Flights have more seats
+ * than a run can book, so booking never fails for lack of capacity.
+ *
+ * The other data tables come from ../data as for
+ * {@code flights.backend = embedded}, so the benchmarks run from the code
+ * directory.
+ */
+class BenchmarkDatabase {
+  static final int DAYS = 28;
+  static final int HUBS = 8;
+  static final int SPOKES = 32;
+  // flights per day between every pair of hubs, and between a spoke and each of its hubs
+  static final int HUB_FLIGHTS = 12;
+  static final int SPOKE_FLIGHTS = 8;
+  static final int SEATS = 100000000;
+  private static final long SEED = 344L;
+
+  private static final String[] CARRIERS = { "AA", "AS", "B6", "DL", "UA", "WN" };
+
+  // the routes searched and booked by the benchmarks
+  static final String HUB_ORIGIN = hub(0);
+  static final String HUB_DEST = hub(1);
+  static final String SPOKE_ORIGIN = spoke(0);
+  static final String SPOKE_DEST = spoke(1);
+  static final int DAY = 14;
+
+  // rids of the reservations inserted by the benchmarks, far above the ones
+  // handed out by ReservationIds
+  private static final int FIRST_INSERTED_RID = 1 << 30;
+  private static int nextInsertedRid = FIRST_INSERTED_RID;
+  private static int nextUser;
+
+  private static ConnectionPool pool;
+  private static FlightSource index;
+  private static FlightSource snapshot;
+
+  /**
+   * The pool of the database, creating and loading it first if needed
+   */
+  static synchronized ConnectionPool pool() throws IOException, SQLException {
+    if (pool == null) {
+      File flights = File.createTempFile("flights-bench", ".csv");
+      flights.deleteOnExit();
+      generate(flights);
+
+      Properties config = new Properties();
+      config.setProperty("flights.backend", "embedded");
+      config.setProperty("flights.embedded_url",
+          "jdbc:h2:mem:flightsbench;MODE=MSSQLServer;IGNORECASE=TRUE;NON_KEYWORDS=MONTH;DB_CLOSE_DELAY=-1");
+      config.setProperty("flights.embedded_csv", "Carriers=../data/carriers.csv,Months=../data/months.csv,"
+          + "Weekdays=../data/weekdays.csv,Flights=" + flights.getPath());
+      // measure the searches, not the cache of their results
+      config.setProperty("flights.search_cache_entries", "0");
+      int threads = Runtime.getRuntime().availableProcessors();
+      pool = new ConnectionPool(config, Math.max(4, threads));
+      pool.release(pool.acquire());
+    }
+    return pool;
+  }
+
+  /**
+   * Opens a session on the database answering searches from the given source:
+   * "database", "index" for {@link FlightIndex} or "snapshot" for
+   * {@link FlightSnapshot}
+   */
+  static Query session(String source) throws IOException, SQLException {
+    Query q = new Query(pool());
+    q.prepareStatements();
+    if (source.equals("index")) {
+      synchronized (BenchmarkDatabase.class) {
+        if (index == null) {
+          index = q.loadFlightIndex();
+        }
+      }
+      q.setFlightIndex(index);
+    } else if (source.equals("snapshot")) {
+      synchronized (BenchmarkDatabase.class) {
+        if (snapshot == null) {
+          File file = File.createTempFile("flights-bench", ".snapshot");
+          file.delete();
+          file.deleteOnExit();
+          snapshot = q.openFlightSnapshot(file.getPath());
+        }
+      }
+      q.setFlightIndex(snapshot);
+    } else if (!source.equals("database")) {
+      throw new IllegalArgumentException("Unknown flight source " + source);
+    }
+    return q;
+  }
+
+  /**
+   * Creates a new user with the given balance and logs the session in as that
+   * user
+   *
+   * @return the username
+   */
+  static String login(Query q, int balance) {
+    String username;
+    synchronized (BenchmarkDatabase.class) {
+      username = "bench" + nextUser++;
+    }
+    q.transaction_createCustomer(username, "pwd", balance);
+    String response = q.transaction_login(username, "pwd");
+    if (!response.startsWith("Logged in")) {
+      throw new IllegalStateException("Cannot log in " + username + ": " + response);
+    }
+    return username;
+  }
+
+  /**
+   * Deletes the reservations of a user and resets the balance, so the next
+   * booking of the user does not clash with earlier ones
+   */
+  static void reset(String username, int balance) throws IOException, SQLException {
+    ConnectionPool.PooledConnection c = pool().acquire();
+    try {
+      PreparedStatement delete = c.prepare("DELETE FROM Reservations WHERE username = ?");
+      delete.setString(1, username);
+      delete.executeUpdate();
+      PreparedStatement update = c.prepare("UPDATE Users SET balance = ? WHERE username = ?");
+      update.setInt(1, balance);
+      update.setString(2, username);
+      update.executeUpdate();
+    } finally {
+      pool().release(c);
+    }
+  }
+
+  /**
+   * Inserts {@code count} unpaid reservations of randomly chosen flights for a
+   * user, without the one booking per day limit of {@code book}
+   */
+  static void insertReservations(String username, int count) throws IOException, SQLException {
+    int first;
+    synchronized (BenchmarkDatabase.class) {
+      first = nextInsertedRid;
+      nextInsertedRid += count;
+    }
+    Random random = new Random(SEED + count);
+    int flights = flightCount();
+    ConnectionPool.PooledConnection c = pool().acquire();
+    try {
+      PreparedStatement insert = c.prepare("INSERT INTO Reservations VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+      for (int i = 0; i < count; i++) {
+        int fid1 = 1 + random.nextInt(flights);
+        // every fourth reservation has two flights
+        int fid2 = i % 4 == 3 ? 1 + random.nextInt(flights) : -1;
+        insert.setInt(1, first + i);
+        insert.setInt(2, fid1);
+        insert.setInt(3, fid2);
+        insert.setInt(4, 0);
+        insert.setInt(5, 500);
+        insert.setString(6, username);
+        insert.setInt(7, 1 + i % DAYS);
+        insert.setInt(8, 0);
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    } finally {
+      pool().release(c);
+    }
+  }
+
+  /**
+   * Returns the reservation id of a successful booking
+   */
+  static int reservationId(String bookResponse) {
+    String prefix = "Booked flight(s), reservation ID: ";
+    if (!bookResponse.startsWith(prefix)) {
+      throw new IllegalStateException("Booking failed: " + bookResponse);
+    }
+    return Integer.parseInt(bookResponse.substring(prefix.length()).trim());
+  }
+
+  static String hub(int i) {
+    return "Hub City " + i;
+  }
+
+  static String spoke(int i) {
+    return "Spoke City " + i;
+  }
+
+  private static int flightCount() {
+    return DAYS * (HUBS * (HUBS - 1) * HUB_FLIGHTS + SPOKES * 3 * 2 * SPOKE_FLIGHTS);
+  }
+
+  /**
+   * Writes the Flights rows as CSV, fid 1, 2, ... in a fixed order
+   */
+  static void generate(File csv) throws IOException {
+    Random random = new Random(SEED);
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8));
+    try {
+      int fid = 1;
+      for (int day = 1; day <= DAYS; day++) {
+        for (int from = 0; from < HUBS; from++) {
+          for (int to = 0; to < HUBS; to++) {
+            if (from != to) {
+              for (int i = 0; i < HUB_FLIGHTS; i++) {
+                writeFlight(out, random, fid++, day, hub(from), hub(to));
+              }
+            }
+          }
+        }
+        for (int s = 0; s < SPOKES; s++) {
+          for (int h = s; h < s + 3; h++) {
+            for (int i = 0; i < SPOKE_FLIGHTS; i++) {
+              writeFlight(out, random, fid++, day, spoke(s), hub(h % HUBS));
+              writeFlight(out, random, fid++, day, hub(h % HUBS), spoke(s));
+            }
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeFlight(Writer out, Random random, int fid, int day, String origin, String dest)
+      throws IOException {
+    String carrier = CARRIERS[random.nextInt(CARRIERS.length)];
+    int time = 60 + random.nextInt(300);
+    int price = 100 + random.nextInt(900);
+    // fid, month_id, day_of_month, day_of_week_id, carrier_id, flight_num, origin_city, origin_state,
+    // dest_city, dest_state, departure_delay, taxi_out, arrival_delay, canceled, actual_time,
+    // distance, capacity, price
+    out.write(fid + ",7," + day + "," + (1 + (day - 1) % 7) + "," + carrier + "," + (1 + random.nextInt(9999))
+        + "," + origin + ",X," + dest + ",X,0,0,0,0," + time + "," + time * 8 + "," + SEATS + "," + price + "\n");
+  }
+}
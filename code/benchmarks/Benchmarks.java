@@ -0,0 +1,25 @@
+package edu.uw.cs;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the benchmarks with the JMH command line options, always reporting the
+ * allocation rate of every benchmark next to its throughput and average time.
+ * Run it from the code directory, for example
+ * {@code java -jar benchmarks/target/benchmarks.jar Search -p source=index}.
+ */
+public class Benchmarks {
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams() || cmd.shouldListProfilers()
+        || cmd.shouldListResultFormats()) {
+      Main.main(args);
+      return;
+    }
+    Options options = new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,101 @@
+package edu.uw.cs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@code transaction_book} of one-leg and two-leg itineraries, and
+ * {@code transaction_pay} and {@code transaction_cancel} of a fresh unpaid
+ * reservation. Every session logs in as its own user; before each call the
+ * reservations of the user are deleted (and, for pay and cancel, one is booked)
+ * outside the measurement, so every call does the full work.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BookingBenchmark {
+  private static final int BALANCE = 1000000;
+
+  public static class Session {
+    Query q;
+    String username;
+
+    /**
+     * Logs in and searches, leaving the itinerary to book at position 0
+     */
+    void open(String origin, String dest, boolean direct) throws Exception {
+      q = BenchmarkDatabase.session("database");
+      username = BenchmarkDatabase.login(q, BALANCE);
+      q.transaction_search(origin, dest, direct, BenchmarkDatabase.DAY, 1);
+    }
+
+    void clear() throws Exception {
+      BenchmarkDatabase.reset(username, BALANCE);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class OneLeg extends Session {
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+      open(BenchmarkDatabase.HUB_ORIGIN, BenchmarkDatabase.HUB_DEST, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws Exception {
+      clear();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class TwoLeg extends Session {
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+      open(BenchmarkDatabase.SPOKE_ORIGIN, BenchmarkDatabase.SPOKE_DEST, false);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws Exception {
+      clear();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Booked extends Session {
+    int rid;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+      open(BenchmarkDatabase.HUB_ORIGIN, BenchmarkDatabase.HUB_DEST, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws Exception {
+      clear();
+      rid = BenchmarkDatabase.reservationId(q.transaction_book(0));
+    }
+  }
+
+  @Benchmark
+  public String bookOneLeg(OneLeg s) {
+    return s.q.transaction_book(0);
+  }
+
+  @Benchmark
+  public String bookTwoLegs(TwoLeg s) {
+    return s.q.transaction_book(0);
+  }
+
+  @Benchmark
+  public String pay(Booked s) {
+    return s.q.transaction_pay(s.rid);
+  }
+
+  @Benchmark
+  public String cancel(Booked s) {
+    return s.q.transaction_cancel(s.rid);
+  }
+}
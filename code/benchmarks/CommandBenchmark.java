@@ -0,0 +1,74 @@
+package edu.uw.cs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link FlightService#execute} on a session whose transactions return at once,
+ * so only the tokenizing and dispatching of the commands is measured
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+  @Param({ "search \"Seattle WA\" \"Boston MA\" 1 14 10", "book 3", "pay 101", "reservations",
+      "create someone secret 1000" })
+  String command;
+
+  private Query q;
+
+  /**
+   * A session that never touches the database
+   */
+  static class NoopQuery extends Query {
+    @Override
+    public String transaction_login(String username, String password) {
+      return "";
+    }
+
+    @Override
+    public String transaction_createCustomer(String username, String password, int initAmount) {
+      return "";
+    }
+
+    @Override
+    public String transaction_search(String originCity, String destinationCity, boolean directFlight,
+        int dayOfMonth, int numberOfItineraries) {
+      return "";
+    }
+
+    @Override
+    public String transaction_book(int itineraryId) {
+      return "";
+    }
+
+    @Override
+    public String transaction_pay(int reservationId) {
+      return "";
+    }
+
+    @Override
+    public String transaction_reservations() {
+      return "";
+    }
+
+    @Override
+    public String transaction_cancel(int reservationId) {
+      return "";
+    }
+  }
+
+  @Setup
+  public void open() {
+    q = new NoopQuery();
+  }
+
+  @Benchmark
+  public String execute() {
+    return FlightService.execute(q, command);
+  }
+}
@@ -0,0 +1,34 @@
+package edu.uw.cs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@code transaction_reservations} for a user with 1, 100 or 1000
+ * reservations, every fourth of them with two flights
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReservationsBenchmark {
+  @Param({ "1", "100", "1000" })
+  int reservations;
+
+  private Query q;
+
+  @Setup
+  public void open() throws Exception {
+    q = BenchmarkDatabase.session("database");
+    String username = BenchmarkDatabase.login(q, 0);
+    BenchmarkDatabase.insertReservations(username, reservations);
+  }
+
+  @Benchmark
+  public String reservations() {
+    return q.transaction_reservations();
+  }
+}
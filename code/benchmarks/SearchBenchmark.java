@@ -0,0 +1,43 @@
+package edu.uw.cs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@code transaction_search} for direct flights between two hubs and for
+ * one-hop itineraries between two spokes, answered by the database, the
+ * in-memory index or the snapshot. The search cache is disabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+  @Param({ "1", "10", "100" })
+  int k;
+
+  @Param({ "database", "index", "snapshot" })
+  String source;
+
+  private Query q;
+
+  @Setup
+  public void open() throws Exception {
+    q = BenchmarkDatabase.session(source);
+  }
+
+  @Benchmark
+  public String direct() {
+    return q.transaction_search(BenchmarkDatabase.HUB_ORIGIN, BenchmarkDatabase.HUB_DEST, true,
+        BenchmarkDatabase.DAY, k);
+  }
+
+  @Benchmark
+  public String indirect() {
+    return q.transaction_search(BenchmarkDatabase.SPOKE_ORIGIN, BenchmarkDatabase.SPOKE_DEST, false,
+        BenchmarkDatabase.DAY, k);
+  }
+}
@@ -0,0 +1,334 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The best direct and one-hop itineraries of every (origin city, destination
+ * city, day), materialized in the BestItineraries table so that a search on
+ * the database reads one range of its primary key instead of running the
+ * INDIRECT self-join.
+ *
+ * Every key holds its first {@code depth} direct itineraries in DIRECT order
+ * and its first {@code depth} one-hop itineraries in search result order,
+ * which contain the answer of any search for at most {@code depth}
+ * itineraries. They are computed in memory with a {@link FlightIndex} and
+ * {@link OneHopSearch}, so they are ranked exactly like the searches of
+ * {@code flights.search_index}. BestItineraryDepth holds the depth once the
+ * table is built.
+ *
+ * A build fills BestItinerariesStaging and swaps its rows into the table in
+ * the same transaction, so searches read either the old or the new table,
+ * never a partly built one, and concurrent builds do not mix their rows.
+ * Serving processes never build the table: they read it up to the depth it
+ * had when they opened it, and search with the usual queries otherwise.
+ *
+ * After flights are added or canceled, {@link #refresh} recomputes only the
+ * keys they take part in: their own route, the routes they start as a first
+ * leg and the routes they end as a second leg, on their day.
+ *
+ * Usage: {@code java edu.uw.cs.BestItineraries [--refresh <fid> ...]} builds
+ * the table with the depth of {@code flights.best_itineraries}, or refreshes
+ * the keys of the given flights.
+ */
+public class BestItineraries {
+  private static final AtomicReference<BestItineraries> SHARED = new AtomicReference<BestItineraries>();
+
+  private static final String LOAD_DAY = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, "
+          + "dest_city, actual_time, capacity, price FROM Flights WHERE day_of_month = ? AND canceled <> 1";
+  private static final String FLIGHT_ROUTE = "SELECT origin_city, dest_city, day_of_month FROM Flights WHERE fid = ?";
+  private static final String DELETE_KEY = "DELETE FROM BestItineraries "
+          + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ?";
+  private static final String INSERT = "INSERT INTO BestItineraries VALUES (?, ?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_STAGING = "INSERT INTO BestItinerariesStaging VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+  // rows inserted per batch while building
+  private static final int BATCH_ROWS = 10000;
+
+  private final int depth;
+  // depth of the built table, 0 until opened
+  private volatile int builtDepth;
+
+  public BestItineraries(int depth) {
+    this.depth = depth;
+  }
+
+  /**
+   * Returns the table shared by all sessions of this process, or null if
+   * {@code flights.best_itineraries} is 0
+   */
+  static BestItineraries shared(Properties config) {
+    int depth = Integer.parseInt(config.getProperty("flights.best_itineraries", "0"));
+    if (depth <= 0) {
+      return null;
+    }
+    BestItineraries best = SHARED.get();
+    if (best == null) {
+      SHARED.compareAndSet(null, new BestItineraries(depth));
+      best = SHARED.get();
+    }
+    return best;
+  }
+
+  /**
+   * Lets searches read the table from now on, up to the depth it was built
+   * with. A table that is not built, or built with a smaller depth than
+   * {@code flights.best_itineraries}, is left as it is: it is built with
+   * {@code java edu.uw.cs.BestItineraries}.
+   */
+  public void open(ConnectionPool pool) throws SQLException {
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      builtDepth = builtDepth(c.connection());
+    } finally {
+      pool.release(c);
+    }
+    if (builtDepth < depth) {
+      System.err.println("BestItineraries holds " + builtDepth + " itineraries per route instead of " + depth
+          + ", run java edu.uw.cs.BestItineraries to build it");
+    }
+  }
+
+  /**
+   * True if the table answers a search for {@code limit} itineraries
+   */
+  public boolean covers(int limit) {
+    return limit > 0 && limit <= builtDepth;
+  }
+
+  private static int builtDepth(Connection conn) throws SQLException {
+    Statement stmt = conn.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery("SELECT MAX(depth) FROM BestItineraryDepth");
+      return rs.next() ? rs.getInt(1) : 0;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Recomputes every key from the Flights table into the staging table and
+   * swaps it in, all in one transaction
+   *
+   * @return the number of itineraries written
+   */
+  public int build(Connection conn) throws SQLException {
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try {
+      Statement stmt = conn.createStatement();
+      stmt.executeUpdate("DELETE FROM BestItinerariesStaging");
+      FlightIndex index = FlightIndex.load(conn);
+      OneHopSearch oneHop = new OneHopSearch(index);
+      PreparedStatement insert = conn.prepareStatement(INSERT_STAGING);
+      int rows = 0;
+      int batched = 0;
+      int cities = StringDictionary.cities().size();
+      // days of the month are 1 to 31
+      for (int day = 1; day <= 31; day++) {
+        for (int origin = 0; origin < cities; origin++) {
+          Flight[] departures = index.departures(origin, day);
+          if (departures.length == 0) {
+            continue;
+          }
+          BitSet dests = new BitSet(cities);
+          for (Flight first : departures) {
+            dests.set(first.destCode);
+            for (Flight second : index.departures(first.destCode, day)) {
+              dests.set(second.destCode);
+            }
+          }
+          for (int dest = dests.nextSetBit(0); dest >= 0; dest = dests.nextSetBit(dest + 1)) {
+            int added = add(insert, index, oneHop, origin, dest, day);
+            rows += added;
+            batched += added;
+          }
+          if (batched >= BATCH_ROWS) {
+            insert.executeBatch();
+            batched = 0;
+          }
+        }
+      }
+      insert.executeBatch();
+      insert.close();
+      stmt.executeUpdate("DELETE FROM BestItineraryDepth");
+      stmt.executeUpdate("DELETE FROM BestItineraries");
+      stmt.executeUpdate("INSERT INTO BestItineraries SELECT * FROM BestItinerariesStaging");
+      stmt.executeUpdate("DELETE FROM BestItinerariesStaging");
+      stmt.executeUpdate("INSERT INTO BestItineraryDepth VALUES (" + depth + ")");
+      stmt.close();
+      conn.commit();
+      return rows;
+    } catch (SQLException | RuntimeException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Recomputes the keys that the given flights, just added or canceled, take
+   * part in, in one transaction
+   *
+   * @return the number of keys recomputed
+   */
+  public int refresh(Connection conn, Collection<Integer> fids) throws SQLException {
+    StringDictionary cities = StringDictionary.cities();
+    // origin and destination codes of the changed flights, by day
+    Map<Integer, List<int[]>> changed = new TreeMap<Integer, List<int[]>>();
+    PreparedStatement route = conn.prepareStatement(FLIGHT_ROUTE);
+    for (int fid : fids) {
+      route.setInt(1, fid);
+      ResultSet rs = route.executeQuery();
+      if (rs.next()) {
+        int day = rs.getInt(3);
+        List<int[]> routes = changed.get(day);
+        if (routes == null) {
+          routes = new ArrayList<int[]>();
+          changed.put(day, routes);
+        }
+        routes.add(new int[] { cities.encode(rs.getString(1)), cities.encode(rs.getString(2)) });
+      }
+      rs.close();
+    }
+    route.close();
+
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try {
+      int keys = 0;
+      PreparedStatement delete = conn.prepareStatement(DELETE_KEY);
+      PreparedStatement insert = conn.prepareStatement(INSERT);
+      for (Map.Entry<Integer, List<int[]>> e : changed.entrySet()) {
+        int day = e.getKey();
+        FlightIndex index = loadDay(conn, day);
+        OneHopSearch oneHop = new OneHopSearch(index);
+        Set<Long> affected = new HashSet<Long>();
+        for (int[] r : e.getValue()) {
+          int origin = r[0];
+          int dest = r[1];
+          affected.add(key(origin, dest));
+          // routes the flight starts as a first leg
+          for (Flight second : index.departures(dest, day)) {
+            affected.add(key(origin, second.destCode));
+          }
+          // routes the flight ends as a second leg
+          Flight[][] arrivals = index.arrivals(origin, day);
+          for (int before = 0; before < arrivals.length; before++) {
+            if (arrivals[before] != null) {
+              affected.add(key(before, dest));
+            }
+          }
+        }
+        for (long k : affected) {
+          int origin = (int) (k >>> 32);
+          int dest = (int) k;
+          delete.setString(1, cities.decode(origin));
+          delete.setString(2, cities.decode(dest));
+          delete.setInt(3, day);
+          delete.executeUpdate();
+          add(insert, index, oneHop, origin, dest, day);
+        }
+        insert.executeBatch();
+        keys += affected.size();
+      }
+      delete.close();
+      insert.close();
+      conn.commit();
+      return keys;
+    } catch (SQLException | RuntimeException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  private static long key(int origin, int dest) {
+    return ((long) origin << 32) | (dest & 0xffffffffL);
+  }
+
+  private static FlightIndex loadDay(Connection conn, int day) throws SQLException {
+    List<Flight> flights = new ArrayList<Flight>();
+    PreparedStatement stmt = conn.prepareStatement(LOAD_DAY);
+    stmt.setInt(1, day);
+    ResultSet rs = stmt.executeQuery();
+    while (rs.next()) {
+      flights.add(Flight.fromColumns(rs, 0).encode());
+    }
+    rs.close();
+    stmt.close();
+    return FlightIndex.build(flights);
+  }
+
+  /**
+   * Adds the rows of one key to the insert batch
+   *
+   * @return the number of rows added
+   */
+  private int add(PreparedStatement insert, FlightIndex index, OneHopSearch oneHop, int origin, int dest, int day)
+      throws SQLException {
+    StringDictionary cities = StringDictionary.cities();
+    String originCity = cities.decode(origin);
+    String destCity = cities.decode(dest);
+    int rows = 0;
+    List<Flight> direct = index.direct(origin, dest, day, depth);
+    for (int slot = 0; slot < direct.size(); slot++) {
+      addRow(insert, originCity, destCity, day, 1, slot, direct.get(slot).fid, -1);
+      rows++;
+    }
+    List<Itinerary> oneHops = oneHop.search(origin, dest, day, depth);
+    for (int slot = 0; slot < oneHops.size(); slot++) {
+      Itinerary it = oneHops.get(slot);
+      addRow(insert, originCity, destCity, day, 2, slot, it.fid1, it.fid2);
+      rows++;
+    }
+    return rows;
+  }
+
+  private static void addRow(PreparedStatement insert, String originCity, String destCity, int day, int legs,
+      int slot, int fid1, int fid2) throws SQLException {
+    insert.setString(1, originCity);
+    insert.setString(2, destCity);
+    insert.setInt(3, day);
+    insert.setInt(4, legs);
+    insert.setInt(5, slot);
+    insert.setInt(6, fid1);
+    if (fid2 < 0) {
+      insert.setNull(7, Types.INTEGER);
+    } else {
+      insert.setInt(7, fid2);
+    }
+    insert.addBatch();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties config = Query.loadConfig();
+    BestItineraries best = shared(config);
+    if (best == null) {
+      System.err.println("Set flights.best_itineraries to the number of itineraries to keep per route and day");
+      System.exit(1);
+    }
+    ConnectionPool pool = new ConnectionPool(config, 1);
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      long start = System.nanoTime();
+      if (args.length > 0 && args[0].equals("--refresh")) {
+        List<Integer> fids = new ArrayList<Integer>();
+        for (int i = 1; i < args.length; i++) {
+          fids.add(Integer.parseInt(args[i]));
+        }
+        int keys = best.refresh(c.connection(), fids);
+        System.out.printf("Refreshed %d routes in %.1f s%n", keys, (System.nanoTime() - start) / 1e9);
+      } else {
+        int rows = best.build(c.connection());
+        System.out.printf("Built %d itineraries in %.1f s%n", rows, (System.nanoTime() - start) / 1e9);
+      }
+    } finally {
+      pool.release(c);
+      pool.close();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package edu.uw.cs;
+
+/**
+ * Hit, miss and eviction counts of a cache shared by the sessions, reported by
+ * {@link QueryStats}
+ */
+public interface CacheStats {
+  long getHits();
+
+  long getMisses();
+
+  long getEvictions();
+}
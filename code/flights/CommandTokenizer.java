@@ -0,0 +1,220 @@
+package edu.uw.cs;
+
+import java.io.*;
+
+/**
+ * Splits command lines into words, reusing its buffers from one command to the
+ * next so that the only objects created per command are the words themselves.
+ *
+ * A word is a run of non-whitespace characters, or the characters between two
+ * double quotes, which may include whitespace. A quote inside a word, or one
+ * that is never closed, is kept as part of the word. A tokenizer is used by one
+ * thread at a time.
+ */
+public class CommandTokenizer {
+  private String[] tokens = new String[8];
+  private int count;
+  // input read by readLine: the current line is [lineStart, lineEnd), the
+  // unread input [pos, limit), allocated by the first readLine
+  private char[] buf;
+  private final int bufferSize;
+  private int pos, limit, lineStart, lineEnd;
+
+  public CommandTokenizer() {
+    this(8192);
+  }
+
+  /**
+   * A tokenizer whose line buffer starts at {@code bufferSize} characters and
+   * grows to the longest line read
+   */
+  public CommandTokenizer(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Splits a command, replacing the words of the previous one
+   *
+   * @return the number of words
+   */
+  public int tokenize(String command) {
+    count = 0;
+    int n = command.length();
+    int i = 0;
+    while (i < n) {
+      char c = command.charAt(i);
+      if (isSpace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '"') {
+        int close = command.indexOf('"', i + 1);
+        if (close >= 0) {
+          add(command.substring(i + 1, close));
+          i = close + 1;
+          continue;
+        }
+      }
+      int end = i + 1;
+      while (end < n && !isSpace(command.charAt(end))) {
+        end++;
+      }
+      add(command.substring(i, end));
+      i = end;
+    }
+    return count;
+  }
+
+  /**
+   * Splits the line last read by {@link #readLine}
+   *
+   * @return the number of words
+   */
+  public int tokenizeLine() {
+    count = 0;
+    char[] cs = buf;
+    int n = lineEnd;
+    int i = lineStart;
+    while (i < n) {
+      char c = cs[i];
+      if (isSpace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '"') {
+        int close = i + 1;
+        while (close < n && cs[close] != '"') {
+          close++;
+        }
+        if (close < n) {
+          add(new String(cs, i + 1, close - i - 1));
+          i = close + 1;
+          continue;
+        }
+      }
+      int end = i + 1;
+      while (end < n && !isSpace(cs[end])) {
+        end++;
+      }
+      add(new String(cs, i, end - i));
+      i = end;
+    }
+    return count;
+  }
+
+  /**
+   * Reads the next line of {@code in}, without its line terminator, into the
+   * tokenizer's own buffer. Always pass the same reader, the tokenizer may
+   * have read ahead of the line.
+   *
+   * @return false at the end of the input
+   */
+  public boolean readLine(Reader in) throws IOException {
+    if (buf == null) {
+      buf = new char[bufferSize];
+    }
+    int scanned = pos;
+    while (true) {
+      for (int i = scanned; i < limit; i++) {
+        if (buf[i] == '\n') {
+          setLine(pos, i);
+          pos = i + 1;
+          return true;
+        }
+      }
+      // no line terminator buffered, keep the partial line and read more
+      if (pos > 0) {
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+      }
+      if (limit == buf.length) {
+        char[] larger = new char[buf.length * 2];
+        System.arraycopy(buf, 0, larger, 0, limit);
+        buf = larger;
+      }
+      scanned = limit;
+      int read = in.read(buf, limit, buf.length - limit);
+      if (read < 0) {
+        if (pos == limit) {
+          return false;
+        }
+        setLine(pos, limit);
+        pos = limit;
+        return true;
+      }
+      limit += read;
+    }
+  }
+
+  /**
+   * True if a whole line is buffered already or {@code in} has more input, so
+   * {@link #readLine} is unlikely to wait
+   */
+  public boolean ready(Reader in) throws IOException {
+    for (int i = pos; i < limit; i++) {
+      if (buf[i] == '\n') {
+        return true;
+      }
+    }
+    return in.ready();
+  }
+
+  private void setLine(int start, int end) {
+    lineStart = start;
+    lineEnd = end > start && buf[end - 1] == '\r' ? end - 1 : end;
+  }
+
+  /**
+   * Number of words of the last command
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * The i-th word of the last command
+   */
+  public String token(int i) {
+    if (i >= count) {
+      throw new ArrayIndexOutOfBoundsException(i);
+    }
+    return tokens[i];
+  }
+
+  /**
+   * The words of the last command, in a new array
+   */
+  public String[] toArray() {
+    String[] words = new String[count];
+    System.arraycopy(tokens, 0, words, 0, count);
+    return words;
+  }
+
+  /**
+   * A new tokenizer holding the words of the last command from the
+   * {@code from}-th on, which stay the same when this tokenizer splits the
+   * next command
+   */
+  public CommandTokenizer rest(int from) {
+    CommandTokenizer rest = new CommandTokenizer();
+    for (int i = from; i < count; i++) {
+      rest.add(tokens[i]);
+    }
+    return rest;
+  }
+
+  private void add(String token) {
+    if (count == tokens.length) {
+      String[] larger = new String[tokens.length * 2];
+      System.arraycopy(tokens, 0, larger, 0, count);
+      tokens = larger;
+    }
+    tokens[count++] = token;
+  }
+
+  // the characters matched by \s
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+  }
+}
@@ -0,0 +1,188 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A bounded pool of application-to-database connections shared by sessions.
+ *
+ * Connections are opened lazily up to the maximum size and configured like the
+ * original single connection: autocommit on, serializable isolation. Every
+ * pooled connection keeps the statements prepared on it, so a session
+ * borrowing it does not prepare them again.
+ */
+public class ConnectionPool {
+  private final Properties config;
+  private final StorageBackend backend;
+  // times the named statements of every connection, null if disabled
+  private final QueryStats stats;
+  private final Semaphore permits;
+  private final ConcurrentLinkedQueue<PooledConnection> idle = new ConcurrentLinkedQueue<PooledConnection>();
+  private final int maxSize;
+  private volatile boolean closed;
+
+  /**
+   * Creates a pool of at most {@code maxSize} connections to the database
+   * described by the dbconn.properties settings in {@code config}.
+   */
+  public ConnectionPool(Properties config, int maxSize) {
+    this(config, StorageBackend.forConfig(config), maxSize);
+  }
+
+  /**
+   * Creates a pool of at most {@code maxSize} connections opened by the given
+   * backend
+   */
+  public ConnectionPool(Properties config, StorageBackend backend, int maxSize) {
+    this.config = config;
+    this.backend = backend;
+    this.stats = QueryStats.shared(config);
+    this.maxSize = maxSize;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * The configuration settings the pool was created with
+   */
+  public Properties getConfig() {
+    return config;
+  }
+
+  /**
+   * The database the connections are opened to
+   */
+  public StorageBackend getBackend() {
+    return backend;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Borrows a connection, waiting for one to be returned if all of them are in
+   * use. Every borrowed connection must be given back with {@link #release}.
+   */
+  public PooledConnection acquire() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool is closed");
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection", e);
+    }
+    PooledConnection c = idle.poll();
+    if (c != null) {
+      return c;
+    }
+    try {
+      return new PooledConnection(open(), stats);
+    } catch (SQLException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Gives back a borrowed connection. Connections that were closed while in use
+   * are dropped and replaced on demand.
+   */
+  public void release(PooledConnection c) {
+    boolean usable;
+    try {
+      usable = !closed && !c.connection().isClosed();
+    } catch (SQLException e) {
+      usable = false;
+    }
+    if (usable) {
+      idle.offer(c);
+    } else {
+      c.close();
+    }
+    permits.release();
+  }
+
+  /**
+   * Closes the idle connections and refuses new borrows. Connections in use are
+   * closed when they are given back.
+   */
+  public void close() {
+    closed = true;
+    PooledConnection c;
+    while ((c = idle.poll()) != null) {
+      c.close();
+    }
+  }
+
+  /**
+   * Opens a connection outside of the pool, for background work that must not
+   * wait for or hold one of the pooled connections. The caller closes it.
+   */
+  Connection openDedicated() throws SQLException {
+    return open();
+  }
+
+  private Connection open() throws SQLException {
+    Connection conn = backend.connect();
+
+    // By default, automatically commit after each statement
+    conn.setAutoCommit(true);
+
+    // By default, set the transaction isolation level to serializable
+    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    return conn;
+  }
+
+  /**
+   * A connection of the pool together with the statements prepared on it. Only
+   * the session that borrowed it may use it.
+   */
+  public static class PooledConnection {
+    private final Connection conn;
+    private final QueryStats stats;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    PooledConnection(Connection conn, QueryStats stats) {
+      this.conn = conn;
+      this.stats = stats;
+    }
+
+    public Connection connection() {
+      return conn;
+    }
+
+    /**
+     * Returns the statement for {@code sql}, preparing it on first use
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      return prepare(null, sql);
+    }
+
+    /**
+     * Same as {@link #prepare(String)}, the executions of the statement are
+     * recorded in the query statistics under {@code name} if not null
+     */
+    public PreparedStatement prepare(String name, String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt == null) {
+        stmt = conn.prepareStatement(sql);
+        if (name != null && stats != null) {
+          stmt = stats.timed(name, stmt);
+        }
+        statements.put(sql, stmt);
+      }
+      return stmt;
+    }
+
+    void close() {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
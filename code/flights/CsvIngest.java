@@ -0,0 +1,283 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Loads a local CSV file into one of the data tables, replacing the BULK INSERT
+ * of data/data_ingestion.txt.
+ *
+ * The file is read in chunks of lines on the calling thread. Every chunk is
+ * parsed on a pool with one thread per core, then inserted by one of several
+ * writers, each with its own connection, in JDBC batches committed once per
+ * chunk. A bounded number of chunks is in flight at a time, so memory stays
+ * flat for files of any size. Progress is reported in rows per second.
+ *
+ * Usage: {@code java edu.uw.cs.CsvIngest [--writers N] [--chunk N] [--replace]
+ * [--snapshot FILE] <table> <csv file>}. With {@code --snapshot} the Flights
+ * rows are also written to a {@link FlightSnapshot}.
+ */
+public class CsvIngest {
+  // column types of the tables in data/data_schema.txt, i = int, s = string
+  private static final Map<String, String> TABLES = new HashMap<String, String>();
+  static {
+    TABLES.put("flights", "iiiisissssiiiiiiii");
+    TABLES.put("carriers", "ss");
+    TABLES.put("months", "is");
+    TABLES.put("weekdays", "is");
+  }
+
+  private static final int READ_BUFFER = 1 << 20;
+
+  // seconds between progress reports
+  private static final int REPORT_SECONDS = 5;
+
+  private final ConnectionPool pool;
+  private final String table;
+  private final String types;
+  private final String insert;
+  private final int writers;
+  private final int chunkSize;
+  private final FlightSnapshot.Builder snapshot;
+
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+  /**
+   * @param snapshot collects the rows for a snapshot if not null, only for
+   *                 the Flights table
+   */
+  public CsvIngest(ConnectionPool pool, String table, int chunkSize, FlightSnapshot.Builder snapshot) {
+    this.types = TABLES.get(table.toLowerCase());
+    if (types == null) {
+      throw new IllegalArgumentException("Unknown table " + table + ", expected one of " + TABLES.keySet());
+    }
+    if (snapshot != null && !table.equalsIgnoreCase("flights")) {
+      throw new IllegalArgumentException("Only the Flights table has a snapshot");
+    }
+    this.pool = pool;
+    this.table = table;
+    this.writers = pool.getMaxSize();
+    this.chunkSize = chunkSize;
+    this.snapshot = snapshot;
+    StringBuilder sql = new StringBuilder("INSERT INTO " + table + " VALUES (");
+    for (int i = 0; i < types.length(); i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+    }
+    this.insert = sql.append(")").toString();
+  }
+
+  /**
+   * Deletes every row of the table before loading it
+   */
+  public void clear() throws SQLException {
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      Statement stmt = c.connection().createStatement();
+      stmt.executeUpdate("DELETE FROM " + table);
+      stmt.close();
+    } finally {
+      pool.release(c);
+    }
+  }
+
+  /**
+   * Loads every line of the CSV into the table
+   *
+   * @return the number of rows inserted
+   */
+  public long load(Reader csv) throws IOException, SQLException {
+    int cores = Runtime.getRuntime().availableProcessors();
+    final ExecutorService parsers = Executors.newFixedThreadPool(cores);
+    final ExecutorService inserters = Executors.newFixedThreadPool(writers);
+    // chunks read but not inserted yet
+    final Semaphore inFlight = new Semaphore(2 * (cores + writers));
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    final long start = System.nanoTime();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        report(start);
+      }
+    }, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+
+    try {
+      BufferedReader in = new BufferedReader(csv, READ_BUFFER);
+      List<String> chunk = new ArrayList<String>(chunkSize);
+      String line;
+      while (failure.get() == null && (line = in.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        chunk.add(line);
+        if (chunk.size() == chunkSize) {
+          submit(chunk, parsers, inserters, inFlight);
+          chunk = new ArrayList<String>(chunkSize);
+        }
+      }
+      if (!chunk.isEmpty() && failure.get() == null) {
+        submit(chunk, parsers, inserters, inFlight);
+      }
+    } finally {
+      // parsers hand their chunks to the inserters, so they stop first
+      await(parsers);
+      await(inserters);
+      reporter.shutdownNow();
+    }
+
+    Exception e = failure.get();
+    if (e instanceof SQLException) {
+      throw (SQLException) e;
+    }
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    if (e != null) {
+      throw new IOException(e);
+    }
+    report(start);
+    return rows.get();
+  }
+
+  private void submit(final List<String> lines, ExecutorService parsers, final ExecutorService inserters,
+      final Semaphore inFlight) throws IOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading");
+    }
+    parsers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final List<String[]> fields = new ArrayList<String[]>(lines.size());
+          for (String line : lines) {
+            fields.add(FlightSnapshot.splitCsv(line));
+          }
+          if (snapshot != null) {
+            snapshot.addAll(fields);
+          }
+          inserters.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                insert(fields);
+              } catch (Exception e) {
+                failure.compareAndSet(null, e);
+              } finally {
+                inFlight.release();
+              }
+            }
+          });
+        } catch (Exception e) {
+          failure.compareAndSet(null, e);
+          inFlight.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Inserts the rows of one chunk in a single batch and transaction
+   */
+  private void insert(List<String[]> lines) throws SQLException {
+    if (failure.get() != null) {
+      return;
+    }
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      c.connection().setAutoCommit(false);
+      PreparedStatement stmt = c.prepare(insert);
+      for (String[] fields : lines) {
+        if (fields.length != types.length()) {
+          throw new SQLException("Expected " + types.length() + " columns but got " + fields.length + ": "
+              + Arrays.toString(fields));
+        }
+        for (int i = 0; i < fields.length; i++) {
+          String value = fields[i];
+          if (value.isEmpty()) {
+            stmt.setNull(i + 1, types.charAt(i) == 'i' ? Types.INTEGER : Types.VARCHAR);
+          } else if (types.charAt(i) == 'i') {
+            stmt.setInt(i + 1, Integer.parseInt(value.trim()));
+          } else {
+            stmt.setString(i + 1, value);
+          }
+        }
+        stmt.addBatch();
+      }
+      stmt.executeBatch();
+      c.connection().commit();
+      rows.addAndGet(lines.size());
+    } catch (SQLException | RuntimeException e) {
+      c.connection().rollback();
+      throw e;
+    } finally {
+      c.connection().setAutoCommit(true);
+      pool.release(c);
+    }
+  }
+
+  private void report(long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long loaded = rows.get();
+    System.err.printf("%s: %d rows in %.1f s (%.0f rows/s)%n", table, loaded, seconds,
+        seconds > 0 ? loaded / seconds : 0.0);
+  }
+
+  private static void await(ExecutorService executor) {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public static void main(String[] args) throws IOException, SQLException {
+    int writers = 4;
+    int chunk = 5000;
+    boolean replace = false;
+    String snapshotFile = null;
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      if (args[i].equals("--writers")) {
+        writers = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--chunk")) {
+        chunk = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--replace")) {
+        replace = true;
+      } else if (args[i].equals("--snapshot")) {
+        snapshotFile = args[++i];
+      } else {
+        i = args.length;
+      }
+    }
+    if (args.length - i != 2) {
+      System.err.println("Usage: CsvIngest [--writers N] [--chunk N] [--replace] [--snapshot FILE] <table> <csv file>");
+      System.exit(1);
+    }
+
+    FlightSnapshot.Builder snapshot = snapshotFile == null ? null : new FlightSnapshot.Builder();
+    ConnectionPool pool = new ConnectionPool(Query.loadConfig(), writers);
+    Reader csv = new InputStreamReader(new FileInputStream(args[i + 1]), StandardCharsets.UTF_8);
+    try {
+      CsvIngest ingest = new CsvIngest(pool, args[i], chunk, snapshot);
+      if (replace) {
+        ingest.clear();
+      }
+      ingest.load(csv);
+    } finally {
+      csv.close();
+      pool.close();
+    }
+    if (snapshot != null) {
+      snapshot.write(new File(snapshotFile));
+      System.out.println("Wrote snapshot " + snapshotFile);
+    }
+  }
+}
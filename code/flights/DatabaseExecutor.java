@@ -0,0 +1,60 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs blocking database work on a fixed set of platform threads.
+ *
+ * The JDBC driver blocks on socket reads inside synchronized methods, which
+ * pins a virtual thread to its carrier for the whole round trip. Sessions
+ * running on virtual threads hand their database work to this executor and
+ * park on the result instead, so carriers stay free for the other sessions.
+ * The number of threads is also the cap on database work in flight.
+ */
+class DatabaseExecutor {
+  private final ExecutorService workers;
+
+  DatabaseExecutor(int maxInFlight) {
+    final AtomicInteger count = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "flights-db-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Runs the work on a database thread and waits for its result
+   */
+  <T> T call(Callable<T> work) throws SQLException {
+    Future<T> result = workers.submit(work);
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for the database", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new SQLException(cause);
+    }
+  }
+
+  void shutdown() {
+    workers.shutdown();
+  }
+}
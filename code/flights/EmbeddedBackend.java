@@ -0,0 +1,181 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * An H2 database running inside the process, for single-node deployments and
+ * benchmarks without a network round trip per statement.
+ *
+ * The database of {@code flights.embedded_url} is in memory by default, or in
+ * a file with a {@code jdbc:h2:<path>} URL, and runs in SQL Server
+ * compatibility mode so the application's statements are unchanged. Strings
+ * compare ignoring case, like under SQL Server's default collation. The first
+ * connection of the process to a database that is not initialized creates the
+ * tables of the {@code flights.embedded_schema} scripts and loads the
+ * {@code table=file} pairs of {@code flights.embedded_csv} with
+ * {@link CsvIngest}. The EmbeddedLoaded table is created once the last file is
+ * loaded: a database without it, whose initialization failed or was cut short,
+ * has the tables of the scripts dropped and is initialized again instead of
+ * running on partial data. The H2 jar must be on the class path.
+ */
+public class EmbeddedBackend implements StorageBackend {
+  private static final String DEFAULT_URL = "jdbc:h2:mem:flights;MODE=MSSQLServer;IGNORECASE=TRUE;NON_KEYWORDS=MONTH;DB_CLOSE_DELAY=-1";
+  private static final String DEFAULT_SCHEMA = "../data/createDataTables.sql,../createTables.sql";
+  private static final String DEFAULT_CSV = "Carriers=../data/carriers.csv,Months=../data/months.csv,"
+          + "Weekdays=../data/weekdays.csv";
+
+  private static final String IS_LOADED = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES "
+          + "WHERE UPPER(TABLE_NAME) = 'EMBEDDEDLOADED'";
+  private static final String MARK_LOADED = "CREATE TABLE EmbeddedLoaded (loaded TIMESTAMP NOT NULL)";
+
+  // databases created or checked by this process, guarded by the class lock
+  private static final Set<String> INITIALIZED = new HashSet<String>();
+
+  private final Properties config;
+  private final String url;
+
+  public EmbeddedBackend(Properties config) {
+    this.config = config;
+    this.url = config.getProperty("flights.embedded_url", DEFAULT_URL);
+  }
+
+  @Override
+  public Connection connect() throws SQLException {
+    synchronized (EmbeddedBackend.class) {
+      if (!INITIALIZED.contains(url)) {
+        try {
+          initialize();
+        } catch (IOException e) {
+          throw new SQLException("Cannot load " + url, e);
+        }
+        INITIALIZED.add(url);
+      }
+    }
+    return DriverManager.getConnection(url);
+  }
+
+  @Override
+  public boolean supportsTransactSql() {
+    return false;
+  }
+
+  private void initialize() throws SQLException, IOException {
+    Connection c = DriverManager.getConnection(url);
+    try {
+      Statement stmt = c.createStatement();
+      ResultSet rs = stmt.executeQuery(IS_LOADED);
+      rs.next();
+      boolean loaded = rs.getInt(1) > 0;
+      rs.close();
+      if (loaded) {
+        stmt.close();
+        return;
+      }
+      List<String> schema = new ArrayList<String>();
+      for (String script : list(config.getProperty("flights.embedded_schema", DEFAULT_SCHEMA))) {
+        schema.addAll(statements(script));
+      }
+      // the tables of an initialization that did not finish, last created first
+      List<String> tables = tables(schema);
+      for (int i = tables.size() - 1; i >= 0; i--) {
+        stmt.execute("DROP TABLE IF EXISTS " + tables.get(i) + " CASCADE");
+      }
+      for (String sql : schema) {
+        stmt.execute(sql);
+      }
+      stmt.close();
+    } finally {
+      c.close();
+    }
+
+    // the loaders connect directly, the other sessions wait for them here
+    StorageBackend direct = new StorageBackend() {
+      @Override
+      public Connection connect() throws SQLException {
+        return DriverManager.getConnection(url);
+      }
+
+      @Override
+      public boolean supportsTransactSql() {
+        return false;
+      }
+    };
+    ConnectionPool pool = new ConnectionPool(config, direct, Runtime.getRuntime().availableProcessors());
+    try {
+      for (String table : list(config.getProperty("flights.embedded_csv", DEFAULT_CSV))) {
+        String[] pair = table.split("=", 2);
+        Reader csv = new InputStreamReader(new FileInputStream(pair[1].trim()), StandardCharsets.UTF_8);
+        try {
+          new CsvIngest(pool, pair[0].trim(), 5000, null).load(csv);
+        } finally {
+          csv.close();
+        }
+      }
+    } finally {
+      pool.close();
+    }
+
+    c = DriverManager.getConnection(url);
+    try {
+      Statement stmt = c.createStatement();
+      stmt.execute(MARK_LOADED);
+      stmt.execute("INSERT INTO EmbeddedLoaded VALUES (CURRENT_TIMESTAMP)");
+      stmt.close();
+    } finally {
+      c.close();
+    }
+  }
+
+  /**
+   * The names of the tables created by the given statements, in order
+   */
+  private static List<String> tables(List<String> statements) {
+    List<String> tables = new ArrayList<String>();
+    for (String sql : statements) {
+      String[] words = sql.split("\\s+", 4);
+      if (words.length > 2 && words[0].equalsIgnoreCase("CREATE") && words[1].equalsIgnoreCase("TABLE")) {
+        tables.add(words[2].split("\\(", 2)[0]);
+      }
+    }
+    return tables;
+  }
+
+  private static List<String> list(String value) {
+    List<String> items = new ArrayList<String>();
+    for (String item : value.split(",")) {
+      if (!item.trim().isEmpty()) {
+        items.add(item.trim());
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Reads the statements of a SQL script, ended by semicolons, without its
+   * comment lines
+   */
+  private static List<String> statements(String script) throws IOException {
+    StringBuilder sql = new StringBuilder();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(script), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.trim().startsWith("--")) {
+          sql.append(line).append('\n');
+        }
+      }
+    } finally {
+      in.close();
+    }
+    List<String> statements = new ArrayList<String>();
+    for (String statement : sql.toString().split(";")) {
+      if (!statement.trim().isEmpty()) {
+        statements.add(statement.trim());
+      }
+    }
+    return statements;
+  }
+}
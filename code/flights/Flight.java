@@ -0,0 +1,81 @@
+package edu.uw.cs;
+
+import java.sql.*;
+
+/**
+ * A class to store flight information.
+ */
+public class Flight {
+  public int fid;
+  public int dayOfMonth;
+  public String carrierId;
+  public String flightNum;
+  public String originCity;
+  public String destCity;
+  public int time;
+  public int capacity;
+  public int price;
+
+  // codes of the cities in StringDictionary.cities(), -1 until encoded
+  int originCode = -1;
+  int destCode = -1;
+
+  /**
+   * Sets the city codes and replaces the city and carrier strings by the
+   * instances kept in the process-wide dictionaries
+   */
+  Flight encode() {
+    StringDictionary cities = StringDictionary.cities();
+    originCode = cities.encode(originCity);
+    originCity = cities.decode(originCode);
+    destCode = cities.encode(destCity);
+    destCity = cities.decode(destCode);
+    StringDictionary carriers = StringDictionary.carriers();
+    carrierId = carriers.decode(carriers.encode(carrierId));
+    return this;
+  }
+
+  /**
+   * Reads a flight from a {@code SELECT *} row of the Flights table. The
+   * {@code offset} is the number of columns preceding the flight in the row, so
+   * that both sides of a self-join can be read.
+   */
+  static Flight fromRow(ResultSet rs, int offset) throws SQLException {
+    Flight f = new Flight();
+    f.fid = rs.getInt(offset + 1);
+    f.dayOfMonth = rs.getInt(offset + 3);
+    f.carrierId = rs.getString(offset + 5);
+    f.flightNum = rs.getString(offset + 6);
+    f.originCity = rs.getString(offset + 7);
+    f.destCity = rs.getString(offset + 9);
+    f.time = rs.getInt(offset + 15);
+    f.capacity = rs.getInt(offset + 17);
+    f.price = rs.getInt(offset + 18);
+    return f;
+  }
+
+  /**
+   * Reads a flight from nine consecutive columns in the order fid,
+   * day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time,
+   * capacity, price, starting after {@code offset} columns.
+   */
+  static Flight fromColumns(ResultSet rs, int offset) throws SQLException {
+    Flight f = new Flight();
+    f.fid = rs.getInt(offset + 1);
+    f.dayOfMonth = rs.getInt(offset + 2);
+    f.carrierId = rs.getString(offset + 3);
+    f.flightNum = rs.getString(offset + 4);
+    f.originCity = rs.getString(offset + 5);
+    f.destCity = rs.getString(offset + 6);
+    f.time = rs.getInt(offset + 7);
+    f.capacity = rs.getInt(offset + 8);
+    f.price = rs.getInt(offset + 9);
+    return f;
+  }
+
+  @Override
+  public String toString() {
+    return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: " + flightNum + " Origin: "
+        + originCity + " Dest: " + destCity + " Duration: " + time + " Capacity: " + capacity + " Price: " + price;
+  }
+}
@@ -0,0 +1,267 @@
+package edu.uw.cs;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded cache of Flights rows by fid, shared by all sessions of the
+ * process.
+ *
+ * Flight rows never change while the service runs, so a cached flight is never
+ * stale. Keys are plain ints stored in the entries, so lookups do not box. The
+ * cache is split into segments, each with its own lock, hash table and
+ * least-recently-used list. Every entry is weighed by the estimated memory its
+ * flight takes, and a segment evicts its least recently used entries once its
+ * share of the memory bound is exceeded.
+ */
+public class FlightCache implements FlightCacheMBean {
+  private static final AtomicReference<FlightCache> SHARED = new AtomicReference<FlightCache>();
+
+  private static final int SEGMENTS = 16;
+
+  // estimated bytes of an entry with its flight, without the strings' chars
+  private static final int ENTRY_OVERHEAD = 48 + 56 + 4 * 40;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final long maxBytes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a cache holding at most about {@code maxBytes} bytes of flights
+   */
+  public FlightCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(maxBytes / SEGMENTS);
+    }
+  }
+
+  /**
+   * Returns the cache shared by all sessions of this process, bounded by the
+   * first caller's {@code flights.flight_cache_kb} setting, or null if that
+   * setting is 0.
+   */
+  static FlightCache shared(Properties config) {
+    long kb = Long.parseLong(config.getProperty("flights.flight_cache_kb", "8192"));
+    if (kb <= 0) {
+      return null;
+    }
+    FlightCache cache = SHARED.get();
+    if (cache == null) {
+      SHARED.compareAndSet(null, new FlightCache(kb * 1024));
+      cache = SHARED.get();
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the cached flight, or null if it is not cached
+   */
+  public Flight get(int fid) {
+    Flight f = segment(fid).get(fid);
+    if (f == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return f;
+  }
+
+  /**
+   * Caches a flight, evicting the least recently used ones if needed
+   */
+  public void put(Flight f) {
+    segment(f.fid).put(f);
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Estimated bytes taken by the cached flights
+   */
+  @Override
+  public long getBytes() {
+    long bytes = 0;
+    for (Segment s : segments) {
+      bytes += s.bytes();
+    }
+    return bytes;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment s : segments) {
+      size += s.size();
+    }
+    return size;
+  }
+
+  private Segment segment(int fid) {
+    return segments[(hash(fid) >>> 28) & (SEGMENTS - 1)];
+  }
+
+  private static int hash(int fid) {
+    int h = fid * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static int weigh(Flight f) {
+    return ENTRY_OVERHEAD + 2 * (length(f.carrierId) + length(f.flightNum) + length(f.originCity)
+        + length(f.destCity));
+  }
+
+  private static int length(String s) {
+    return s == null ? 0 : s.length();
+  }
+
+  private static final class Entry {
+    final int fid;
+    Flight flight;
+    int weight;
+    // next entry of the same bucket
+    Entry next;
+    // neighbours in the segment's least-recently-used list
+    Entry older;
+    Entry newer;
+
+    Entry(int fid) {
+      this.fid = fid;
+    }
+  }
+
+  /**
+   * A hash table of entries chained by bucket, and a list of the same entries
+   * from least to most recently used
+   */
+  private final class Segment {
+    private final long maxBytes;
+    private final Entry lru = new Entry(-1);
+    private Entry[] table = new Entry[64];
+    private int count;
+    private long bytes;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+      lru.older = lru;
+      lru.newer = lru;
+    }
+
+    synchronized Flight get(int fid) {
+      Entry e = find(fid);
+      if (e == null) {
+        return null;
+      }
+      unlink(e);
+      linkNewest(e);
+      return e.flight;
+    }
+
+    synchronized void put(Flight f) {
+      int weight = weigh(f);
+      if (weight > maxBytes) {
+        return;
+      }
+      Entry e = find(f.fid);
+      if (e != null) {
+        unlink(e);
+        bytes -= e.weight;
+      } else {
+        e = new Entry(f.fid);
+        int i = hash(f.fid) & (table.length - 1);
+        e.next = table[i];
+        table[i] = e;
+        if (++count > table.length * 3 / 4) {
+          resize();
+        }
+      }
+      e.flight = f;
+      e.weight = weight;
+      bytes += weight;
+      linkNewest(e);
+      while (bytes > maxBytes) {
+        Entry oldest = lru.newer;
+        unlink(oldest);
+        remove(oldest);
+        bytes -= oldest.weight;
+        evictions.incrementAndGet();
+      }
+    }
+
+    synchronized long bytes() {
+      return bytes;
+    }
+
+    synchronized int size() {
+      return count;
+    }
+
+    private Entry find(int fid) {
+      for (Entry e = table[hash(fid) & (table.length - 1)]; e != null; e = e.next) {
+        if (e.fid == fid) {
+          return e;
+        }
+      }
+      return null;
+    }
+
+    private void remove(Entry e) {
+      int i = hash(e.fid) & (table.length - 1);
+      if (table[i] == e) {
+        table[i] = e.next;
+      } else {
+        Entry prev = table[i];
+        while (prev.next != e) {
+          prev = prev.next;
+        }
+        prev.next = e.next;
+      }
+      count--;
+    }
+
+    private void resize() {
+      Entry[] old = table;
+      table = new Entry[old.length * 2];
+      for (Entry head : old) {
+        for (Entry e = head; e != null;) {
+          Entry next = e.next;
+          int i = hash(e.fid) & (table.length - 1);
+          e.next = table[i];
+          table[i] = e;
+          e = next;
+        }
+      }
+    }
+
+    private void unlink(Entry e) {
+      e.older.newer = e.newer;
+      e.newer.older = e.older;
+    }
+
+    private void linkNewest(Entry e) {
+      e.older = lru.older;
+      e.newer = lru;
+      lru.older.newer = e;
+      lru.older = e;
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package edu.uw.cs;
+
+/**
+ * JMX view of the {@link FlightCache}, see {@link QueryStats}
+ */
+public interface FlightCacheMBean extends CacheStats {
+  long getBytes();
+
+  long getMaxBytes();
+}
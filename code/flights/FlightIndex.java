@@ -0,0 +1,176 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * In-memory index over the Flights table, used to answer searches without a
+ * round trip to the database.
+ *
+ * Flights are grouped by day of month and origin city code. Every group is
+ * sorted by (actual_time, fid), which is the order the search results are
+ * printed in. For one-hop searches the flights are also grouped by day,
+ * destination city code and origin city code, so the legs reaching a
+ * destination can be looked up by connection city with an array access.
+ * Canceled flights are never indexed.
+ */
+public class FlightIndex implements FlightSource {
+  private static final String LOAD_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, "
+          + "dest_city, actual_time, capacity, price FROM Flights WHERE canceled <> 1";
+
+  // rows streamed per round trip while loading
+  private static final int FETCH_SIZE = 10000;
+
+  private static final Flight[] NO_FLIGHTS = new Flight[0];
+
+  private static final Flight[][] NO_CONNECTIONS = new Flight[0][];
+
+  // flights by day of month, then origin city
+  private final Flight[][][] byOrigin;
+  // flights by day of month, then destination city, then origin city
+  private final Flight[][][][] byDest;
+  private final int size;
+
+  private FlightIndex(Flight[][][] byOrigin, Flight[][][][] byDest, int size) {
+    this.byOrigin = byOrigin;
+    this.byDest = byDest;
+    this.size = size;
+  }
+
+  /**
+   * Builds the index from the Flights table of the given connection.
+   */
+  public static FlightIndex load(Connection conn) throws SQLException {
+    List<Flight> flights = new ArrayList<Flight>();
+    Statement stmt = conn.createStatement();
+    stmt.setFetchSize(FETCH_SIZE);
+    ResultSet rs = stmt.executeQuery(LOAD_FLIGHTS);
+    while (rs.next()) {
+      flights.add(Flight.fromColumns(rs, 0).encode());
+    }
+    rs.close();
+    stmt.close();
+    return build(flights);
+  }
+
+  /**
+   * Builds the index from already loaded flights, encoding them if needed.
+   * Canceled flights must have been filtered out by the caller.
+   */
+  static FlightIndex build(Collection<Flight> flights) {
+    Flight[] sorted = flights.toArray(NO_FLIGHTS);
+    int days = 0;
+    for (Flight f : sorted) {
+      if (f.originCode < 0) {
+        f.encode();
+      }
+      days = Math.max(days, f.dayOfMonth + 1);
+    }
+    // filling the groups in this order keeps every group sorted
+    Arrays.sort(sorted, BY_TIME);
+    int cities = StringDictionary.cities().size();
+
+    // count the flights of every group to size its array
+    int[][] departures = new int[days][cities];
+    int[][][] arrivals = new int[days][cities][];
+    for (Flight f : sorted) {
+      departures[f.dayOfMonth][f.originCode]++;
+      int[] origins = arrivals[f.dayOfMonth][f.destCode];
+      if (origins == null) {
+        origins = new int[cities];
+        arrivals[f.dayOfMonth][f.destCode] = origins;
+      }
+      origins[f.originCode]++;
+    }
+    Flight[][][] byOrigin = new Flight[days][cities][];
+    Flight[][][][] byDest = new Flight[days][cities][][];
+    for (int day = 0; day < days; day++) {
+      for (int city = 0; city < cities; city++) {
+        if (departures[day][city] > 0) {
+          byOrigin[day][city] = new Flight[departures[day][city]];
+          departures[day][city] = 0;
+        }
+        int[] origins = arrivals[day][city];
+        if (origins != null) {
+          byDest[day][city] = new Flight[cities][];
+          for (int origin = 0; origin < cities; origin++) {
+            if (origins[origin] > 0) {
+              byDest[day][city][origin] = new Flight[origins[origin]];
+              origins[origin] = 0;
+            }
+          }
+        }
+      }
+    }
+    // the counters now hold the next free slot of every group
+    for (Flight f : sorted) {
+      byOrigin[f.dayOfMonth][f.originCode][departures[f.dayOfMonth][f.originCode]++] = f;
+      byDest[f.dayOfMonth][f.destCode][f.originCode][arrivals[f.dayOfMonth][f.destCode][f.originCode]++] = f;
+    }
+    return new FlightIndex(byOrigin, byDest, sorted.length);
+  }
+
+  /**
+   * Orders flights by (actual_time, fid), the order of the DIRECT query.
+   */
+  static final Comparator<Flight> BY_TIME = new Comparator<Flight>() {
+    @Override
+    public int compare(Flight a, Flight b) {
+      if (a.time != b.time) {
+        return a.time < b.time ? -1 : 1;
+      }
+      return a.fid < b.fid ? -1 : (a.fid == b.fid ? 0 : 1);
+    }
+  };
+
+  @Override
+  public Flight[] departures(int originCity, int dayOfMonth) {
+    if (dayOfMonth < 0 || dayOfMonth >= byOrigin.length || originCity < 0
+        || originCity >= byOrigin[dayOfMonth].length) {
+      return NO_FLIGHTS;
+    }
+    Flight[] group = byOrigin[dayOfMonth][originCity];
+    return group == null ? NO_FLIGHTS : group;
+  }
+
+  @Override
+  public Flight[][] arrivals(int destCity, int dayOfMonth) {
+    if (dayOfMonth < 0 || dayOfMonth >= byDest.length || destCity < 0 || destCity >= byDest[dayOfMonth].length) {
+      return NO_CONNECTIONS;
+    }
+    Flight[][] arrivals = byDest[dayOfMonth][destCity];
+    return arrivals == null ? NO_CONNECTIONS : arrivals;
+  }
+
+  @Override
+  public int[] fastestArrivals(int destCity, int dayOfMonth) {
+    Flight[][] arrivals = arrivals(destCity, dayOfMonth);
+    int[] fastest = new int[arrivals.length];
+    for (int origin = 0; origin < arrivals.length; origin++) {
+      fastest[origin] = arrivals[origin] == null ? -1 : arrivals[origin][0].time;
+    }
+    return fastest;
+  }
+
+  @Override
+  public List<Flight> direct(int originCity, int destCity, int dayOfMonth, int limit) {
+    List<Flight> result = new ArrayList<Flight>();
+    if (limit <= 0) {
+      return result;
+    }
+    for (Flight f : departures(originCity, dayOfMonth)) {
+      if (f.destCode == destCity) {
+        result.add(f);
+        if (result.size() == limit) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+}
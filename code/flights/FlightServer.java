@@ -0,0 +1,237 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serves many client sessions over a local TCP socket.
+ *
+ * Every client connection is a session with its own {@link Query}, so its login
+ * and search results are kept apart from the other sessions. Clients send the
+ * same commands as the REPL, one per line. Every response is followed by an
+ * empty line marking its end. All sessions borrow their database connections
+ * from one bounded {@link ConnectionPool} and share the flight index or
+ * snapshot if one is enabled.
+ *
+ * With {@code flights.virtual_threads} every session runs on its own virtual
+ * thread, so idle sessions cost little more than their buffers. Their database
+ * work then runs on a {@link DatabaseExecutor} of {@code flights.max_inflight}
+ * platform threads, which keeps the JDBC driver from pinning carrier threads.
+ *
+ * A client that sends {@code pipeline} switches its session to tagged
+ * commands that it may send without waiting for the responses, see
+ * {@link Pipeline}.
+ */
+public class FlightServer {
+  private final Properties config;
+  private final ConnectionPool pool;
+  private final ServerSocket serverSocket;
+  private final ExecutorService sessions;
+  private final Semaphore sessionPermits;
+  private final DatabaseExecutor databaseExecutor;
+  private final int pipelineDepth;
+  private FlightSource flightIndex;
+  private SeatInventory seatInventory;
+
+  // per session socket buffers, kept small since most sessions are idle
+  private static final int BUFFER_SIZE = 1024;
+
+  /**
+   * Opens the server socket on the loopback interface. The port, the pool size
+   * and the maximum number of concurrent sessions come from {@code config}.
+   */
+  public FlightServer(Properties config) throws IOException {
+    this.config = config;
+    int port = Integer.parseInt(config.getProperty("flights.server_port", "4444"));
+    int poolSize = Integer.parseInt(config.getProperty("flights.pool_size", "16"));
+    int maxSessions = Integer.parseInt(config.getProperty("flights.max_sessions", "4096"));
+    this.pool = new ConnectionPool(config, poolSize);
+    this.serverSocket = new ServerSocket(port, 512, InetAddress.getLoopbackAddress());
+    this.sessionPermits = new Semaphore(maxSessions);
+    this.pipelineDepth = Integer.parseInt(config.getProperty("flights.pipeline_depth", "64"));
+
+    ExecutorService virtual = null;
+    if (Boolean.parseBoolean(config.getProperty("flights.virtual_threads", "false"))) {
+      virtual = VirtualThreads.newPerTaskExecutor();
+      if (virtual == null) {
+        System.err.println("Virtual threads need Java 21 or later, using platform threads");
+      }
+    }
+    if (virtual != null) {
+      int maxInFlight = Integer.parseInt(config.getProperty("flights.max_inflight", String.valueOf(poolSize)));
+      this.sessions = virtual;
+      this.databaseExecutor = new DatabaseExecutor(maxInFlight);
+    } else {
+      this.sessions = Executors.newCachedThreadPool();
+      this.databaseExecutor = null;
+    }
+  }
+
+  /**
+   * Prepares the shared state and accepts sessions until the server socket is
+   * closed.
+   */
+  public void serve() throws IOException, SQLException {
+    Query q = new Query(pool);
+    q.prepareStatements();
+    StringDictionary.seed(config);
+    String snapshot = config.getProperty("flights.snapshot", "");
+    if (!snapshot.isEmpty()) {
+      flightIndex = q.openFlightSnapshot(snapshot);
+    } else if (Boolean.parseBoolean(config.getProperty("flights.search_index", "false"))) {
+      flightIndex = q.loadFlightIndex();
+    }
+    if (Boolean.parseBoolean(config.getProperty("flights.seat_inventory", "false"))) {
+      seatInventory = q.startSeatInventory();
+    }
+    q.openBestItineraries();
+    System.out.println("Serving flights on " + serverSocket.getLocalSocketAddress());
+
+    try {
+      while (!serverSocket.isClosed()) {
+        Socket client;
+        try {
+          client = serverSocket.accept();
+        } catch (SocketException e) {
+          // closed by close()
+          break;
+        }
+        if (!sessionPermits.tryAcquire()) {
+          refuse(client);
+          continue;
+        }
+        try {
+          sessions.execute(new Session(client));
+        } catch (RejectedExecutionException e) {
+          sessionPermits.release();
+          refuse(client);
+        }
+      }
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Stops accepting sessions, lets the open ones finish and closes the pool
+   */
+  public void close() {
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    sessions.shutdown();
+    try {
+      sessions.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (databaseExecutor != null) {
+      databaseExecutor.shutdown();
+    }
+    if (seatInventory != null) {
+      try {
+        seatInventory.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    pool.close();
+  }
+
+  private static void refuse(Socket client) {
+    try {
+      Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8);
+      out.write("Server busy, please try again later\n\n");
+      out.flush();
+      client.close();
+    } catch (IOException e) {
+      // the client is gone already
+    }
+  }
+
+  /**
+   * Reads the commands of one client and writes back the responses
+   */
+  private class Session implements Runnable {
+    private final Socket client;
+
+    Session(Socket client) {
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      Query q = new Query(pool);
+      q.setFlightIndex(flightIndex);
+      q.setSeatInventory(seatInventory);
+      q.setDatabaseExecutor(databaseExecutor);
+      try {
+        Reader in = new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8);
+        Writer out = new BufferedWriter(
+            new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+        CommandTokenizer tokens = new CommandTokenizer(BUFFER_SIZE);
+        while (tokens.readLine(in)) {
+          tokens.tokenizeLine();
+          if (tokens.count() == 1 && tokens.token(0).equals("pipeline")) {
+            out.write("Pipelining\n\n");
+            out.flush();
+            pipeline(q, tokens, in, out);
+            break;
+          }
+          String response;
+          try {
+            response = FlightService.execute(q, tokens);
+          } catch (NumberFormatException e) {
+            response = "Failed to parse integer\n";
+          }
+          out.write(response);
+          if (!response.endsWith("\n")) {
+            out.write('\n');
+          }
+          out.write('\n');
+          out.flush();
+          if (response.equals("Goodbye\n")) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        // the client went away, drop the session
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        sessionPermits.release();
+        try {
+          client.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    /**
+     * Reads tagged commands, {@code <tag> <command>}, until the end of the
+     * input or a {@code quit}, and runs them through a {@link Pipeline}
+     */
+    private void pipeline(Query q, CommandTokenizer tokens, Reader in, Writer out)
+        throws IOException, InterruptedException {
+      Pipeline pipeline = new Pipeline(q, sessions, out, pipelineDepth);
+      while (tokens.readLine(in)) {
+        if (tokens.tokenizeLine() == 0) {
+          continue;
+        }
+        CommandTokenizer command = tokens.rest(1);
+        pipeline.submit(tokens.token(0), command);
+        if (command.count() > 0 && command.token(0).equals("quit")) {
+          break;
+        }
+      }
+      pipeline.finish();
+    }
+  }
+}
@@ -0,0 +1,625 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A read-only snapshot of the Flights table in a memory-mapped file, searched
+ * in place.
+ *
+ * The file holds the search columns of every flight, one fixed-width column
+ * each: fid, flight_num, actual_time, capacity and price as ints, carrier_id as
+ * a char code into a dictionary of carriers, origin_city and dest_city as char
+ * codes into a dictionary of cities, and day_of_month and canceled as bytes.
+ * Rows are sorted by (day_of_month, origin_city, actual_time, fid), so the
+ * departures of a city on a day are one contiguous range found by binary
+ * search. A further int column lists the rows
+ * sorted by (day_of_month, dest_city, origin_city, actual_time, fid) for the
+ * arrivals.
+ *
+ * Opening a snapshot maps the file and reads only its dictionaries, so it takes
+ * milliseconds and every process on the host shares the same pages of the OS
+ * cache. The file's city codes are translated to and from the process-wide
+ * {@link StringDictionary#cities()} codes, and Flight objects are only created
+ * for the rows a search looks at.
+ *
+ * Build a snapshot from the database or from the flights CSV file with
+ * {@code java edu.uw.cs.FlightSnapshot <snapshot file> [flights csv]}.
+ */
+public class FlightSnapshot implements FlightSource {
+  // "FLS1"
+  private static final int MAGIC = 0x464c5331;
+  private static final int VERSION = 2;
+  // magic, version, rows, live rows, dictionaries bytes
+  private static final int HEADER_BYTES = 20;
+
+  private static final String LOAD_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, "
+          + "dest_city, actual_time, capacity, price, canceled FROM Flights";
+
+  // rows streamed per round trip while building
+  private static final int FETCH_SIZE = 10000;
+
+  private static final Flight[] NO_FLIGHTS = new Flight[0];
+
+  private static final Flight[][] NO_CONNECTIONS = new Flight[0][];
+
+  private static final int[] NO_TIMES = new int[0];
+
+  private final ByteBuffer data;
+  private final int rows;
+  private final int live;
+  private final String[] carriers;
+  private final String[] cities;
+  // process-wide code of every city code of the file
+  private final int[] sharedCity;
+  // city code of the file of every process-wide code when opened, or -1
+  private final int[] localCity;
+
+  // byte offsets of the columns
+  private final int fidAt;
+  private final int flightNumAt;
+  private final int timeAt;
+  private final int capacityAt;
+  private final int priceAt;
+  private final int byDestAt;
+  private final int carrierAt;
+  private final int originAt;
+  private final int destAt;
+  private final int dayAt;
+  private final int canceledAt;
+
+  private FlightSnapshot(ByteBuffer data) throws IOException {
+    this.data = data;
+    if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      throw new IOException("Not a flights snapshot");
+    }
+    this.rows = data.getInt(8);
+    this.live = data.getInt(12);
+    int dictionaryBytes = data.getInt(16);
+
+    ByteBuffer in = data.duplicate();
+    in.position(HEADER_BYTES);
+    this.carriers = readDictionary(in, StringDictionary.carriers());
+    this.cities = readDictionary(in, StringDictionary.cities());
+    this.sharedCity = new int[cities.length];
+    this.localCity = new int[StringDictionary.cities().size()];
+    Arrays.fill(localCity, -1);
+    for (int i = 0; i < cities.length; i++) {
+      sharedCity[i] = StringDictionary.cities().code(cities[i]);
+      localCity[sharedCity[i]] = i;
+    }
+
+    int at = align(HEADER_BYTES + dictionaryBytes);
+    fidAt = at;
+    flightNumAt = fidAt + 4 * rows;
+    timeAt = flightNumAt + 4 * rows;
+    capacityAt = timeAt + 4 * rows;
+    priceAt = capacityAt + 4 * rows;
+    byDestAt = priceAt + 4 * rows;
+    carrierAt = byDestAt + 4 * rows;
+    originAt = carrierAt + 2 * rows;
+    destAt = originAt + 2 * rows;
+    dayAt = destAt + 2 * rows;
+    canceledAt = dayAt + rows;
+    if (canceledAt + rows > data.capacity()) {
+      throw new IOException("Truncated flights snapshot");
+    }
+  }
+
+  /**
+   * Reads a dictionary section, returning the process-wide instances of its
+   * strings by their code in the file
+   */
+  private static String[] readDictionary(ByteBuffer in, StringDictionary shared) {
+    String[] strings = new String[in.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[in.getShort() & 0xffff];
+      in.get(bytes);
+      strings[i] = shared.decode(shared.encode(new String(bytes, StandardCharsets.UTF_8)));
+    }
+    return strings;
+  }
+
+  private static int align(int offset) {
+    return (offset + 3) & ~3;
+  }
+
+  /**
+   * Maps an existing snapshot file
+   */
+  public static FlightSnapshot open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      // the mapping stays valid once the channel is closed
+      return new FlightSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Override
+  public Flight[] departures(int originCity, int dayOfMonth) {
+    int origin = local(originCity);
+    if (origin < 0) {
+      return NO_FLIGHTS;
+    }
+    List<Flight> flights = new ArrayList<Flight>();
+    for (int row = firstDeparture(origin, dayOfMonth); isDeparture(row, origin, dayOfMonth); row++) {
+      if (!canceled(row)) {
+        flights.add(flight(row));
+      }
+    }
+    return flights.toArray(NO_FLIGHTS);
+  }
+
+  @Override
+  public Flight[][] arrivals(int destCity, int dayOfMonth) {
+    int dest = local(destCity);
+    if (dest < 0) {
+      return NO_CONNECTIONS;
+    }
+    Flight[][] arrivals = new Flight[StringDictionary.cities().size()][];
+    List<Flight> group = new ArrayList<Flight>();
+    int groupOrigin = -1;
+    for (int i = firstArrival(dest, dayOfMonth); i < rows; i++) {
+      int row = data.getInt(byDestAt + 4 * i);
+      if (day(row) != dayOfMonth || code(destAt, row) != dest) {
+        break;
+      }
+      if (canceled(row)) {
+        continue;
+      }
+      int origin = code(originAt, row);
+      if (origin != groupOrigin && !group.isEmpty()) {
+        arrivals[sharedCity[groupOrigin]] = group.toArray(NO_FLIGHTS);
+        group.clear();
+      }
+      groupOrigin = origin;
+      group.add(flight(row));
+    }
+    if (!group.isEmpty()) {
+      arrivals[sharedCity[groupOrigin]] = group.toArray(NO_FLIGHTS);
+    }
+    return arrivals;
+  }
+
+  @Override
+  public int[] fastestArrivals(int destCity, int dayOfMonth) {
+    int dest = local(destCity);
+    if (dest < 0) {
+      return NO_TIMES;
+    }
+    int[] fastest = new int[StringDictionary.cities().size()];
+    Arrays.fill(fastest, -1);
+    for (int i = firstArrival(dest, dayOfMonth); i < rows; i++) {
+      int row = data.getInt(byDestAt + 4 * i);
+      if (day(row) != dayOfMonth || code(destAt, row) != dest) {
+        break;
+      }
+      // the rows of an origin are sorted by time, its first live one is the
+      // fastest
+      int origin = sharedCity[code(originAt, row)];
+      if (fastest[origin] < 0 && !canceled(row)) {
+        fastest[origin] = data.getInt(timeAt + 4 * row);
+      }
+    }
+    return fastest;
+  }
+
+  @Override
+  public List<Flight> direct(int originCity, int destCity, int dayOfMonth, int limit) {
+    List<Flight> result = new ArrayList<Flight>();
+    int origin = local(originCity);
+    int dest = local(destCity);
+    if (limit <= 0 || origin < 0 || dest < 0) {
+      return result;
+    }
+    for (int row = firstDeparture(origin, dayOfMonth); isDeparture(row, origin, dayOfMonth); row++) {
+      if (code(destAt, row) == dest && !canceled(row)) {
+        result.add(flight(row));
+        if (result.size() == limit) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public int size() {
+    return live;
+  }
+
+  /**
+   * The city code of the file for a process-wide city code, or -1
+   */
+  private int local(int city) {
+    return city >= 0 && city < localCity.length ? localCity[city] : -1;
+  }
+
+  /**
+   * First row at or after (dayOfMonth, origin) in row order
+   */
+  private int firstDeparture(int origin, int dayOfMonth) {
+    int lo = 0;
+    int hi = rows;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int day = day(mid);
+      if (day < dayOfMonth || (day == dayOfMonth && code(originAt, mid) < origin)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private boolean isDeparture(int row, int origin, int dayOfMonth) {
+    return row < rows && day(row) == dayOfMonth && code(originAt, row) == origin;
+  }
+
+  /**
+   * First position of the arrivals column at or after (dayOfMonth, dest)
+   */
+  private int firstArrival(int dest, int dayOfMonth) {
+    int lo = 0;
+    int hi = rows;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int row = data.getInt(byDestAt + 4 * mid);
+      int day = day(row);
+      if (day < dayOfMonth || (day == dayOfMonth && code(destAt, row) < dest)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int day(int row) {
+    return data.get(dayAt + row);
+  }
+
+  private boolean canceled(int row) {
+    return data.get(canceledAt + row) == 1;
+  }
+
+  private int code(int column, int row) {
+    return data.getChar(column + 2 * row);
+  }
+
+  private Flight flight(int row) {
+    Flight f = new Flight();
+    f.fid = data.getInt(fidAt + 4 * row);
+    f.dayOfMonth = day(row);
+    f.carrierId = carriers[code(carrierAt, row)];
+    f.flightNum = String.valueOf(data.getInt(flightNumAt + 4 * row));
+    int origin = code(originAt, row);
+    f.originCity = cities[origin];
+    f.originCode = sharedCity[origin];
+    int dest = code(destAt, row);
+    f.destCity = cities[dest];
+    f.destCode = sharedCity[dest];
+    f.time = data.getInt(timeAt + 4 * row);
+    f.capacity = data.getInt(capacityAt + 4 * row);
+    f.price = data.getInt(priceAt + 4 * row);
+    return f;
+  }
+
+  /**
+   * The columns of one flight while a snapshot is built
+   */
+  private static final class Row {
+    int fid;
+    int dayOfMonth;
+    String carrierId;
+    int flightNum;
+    String originCity;
+    String destCity;
+    int time;
+    int capacity;
+    int price;
+    boolean canceled;
+    int carrier;
+    int origin;
+    int dest;
+  }
+
+  /**
+   * Writes a snapshot of the Flights table of the given connection
+   */
+  public static void build(Connection conn, File file) throws SQLException, IOException {
+    List<Row> flights = new ArrayList<Row>();
+    Statement stmt = conn.createStatement();
+    stmt.setFetchSize(FETCH_SIZE);
+    ResultSet rs = stmt.executeQuery(LOAD_FLIGHTS);
+    while (rs.next()) {
+      Row r = new Row();
+      r.fid = rs.getInt(1);
+      r.dayOfMonth = rs.getInt(2);
+      r.carrierId = rs.getString(3);
+      r.flightNum = rs.getInt(4);
+      r.originCity = rs.getString(5);
+      r.destCity = rs.getString(6);
+      r.time = rs.getInt(7);
+      r.capacity = rs.getInt(8);
+      r.price = rs.getInt(9);
+      r.canceled = rs.getInt(10) == 1;
+      flights.add(r);
+    }
+    rs.close();
+    stmt.close();
+    write(flights, file);
+  }
+
+  /**
+   * Writes a snapshot of a flights CSV file, in the column order of the Flights
+   * table (see data/data_schema.txt)
+   */
+  public static void buildFromCsv(Reader csv, File file) throws IOException {
+    Builder builder = new Builder();
+    BufferedReader in = new BufferedReader(csv);
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (!line.isEmpty()) {
+        builder.add(splitCsv(line));
+      }
+    }
+    builder.write(file);
+  }
+
+  /**
+   * Collects flights given as the fields of Flights CSV lines, from any number
+   * of threads, and writes them as a snapshot
+   */
+  public static class Builder {
+    private final List<Row> flights = new ArrayList<Row>();
+
+    public synchronized void add(String[] fields) throws IOException {
+      flights.add(row(fields));
+    }
+
+    public void addAll(List<String[]> lines) throws IOException {
+      List<Row> rows = new ArrayList<Row>(lines.size());
+      for (String[] fields : lines) {
+        rows.add(row(fields));
+      }
+      synchronized (this) {
+        flights.addAll(rows);
+      }
+    }
+
+    public synchronized void write(File file) throws IOException {
+      FlightSnapshot.write(flights, file);
+    }
+  }
+
+  private static Row row(String[] fields) throws IOException {
+    if (fields.length < 18) {
+      throw new IOException("Expected 18 columns: " + Arrays.toString(fields));
+    }
+    Row r = new Row();
+    r.fid = number(fields[0]);
+    r.dayOfMonth = number(fields[2]);
+    r.carrierId = fields[4];
+    r.flightNum = number(fields[5]);
+    r.originCity = fields[6];
+    r.destCity = fields[8];
+    r.canceled = number(fields[13]) == 1;
+    r.time = number(fields[14]);
+    r.capacity = number(fields[16]);
+    r.price = number(fields[17]);
+    return r;
+  }
+
+  private static int number(String field) {
+    // canceled flights have no actual time
+    return field.isEmpty() ? 0 : Integer.parseInt(field.trim());
+  }
+
+  /**
+   * Splits a CSV line, allowing double-quoted fields with "" as an escaped quote
+   */
+  static String[] splitCsv(String line) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else if (c != '\r') {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  private static void write(List<Row> flights, File file) throws IOException {
+    // dictionaries of the string columns, in sorted order
+    TreeSet<String> carrierSet = new TreeSet<String>();
+    // cities that differ only in case share a code, as in StringDictionary
+    TreeSet<String> citySet = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    for (Row r : flights) {
+      carrierSet.add(r.carrierId);
+      citySet.add(r.originCity);
+      citySet.add(r.destCity);
+    }
+    Map<String, Integer> carrierCodes = new HashMap<String, Integer>();
+    Map<String, Integer> cityCodes = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+    List<byte[]> carrierBytes = encodeDictionary(carrierSet, carrierCodes);
+    List<byte[]> cityBytes = encodeDictionary(citySet, cityCodes);
+    int dictionaryBytes = 8;
+    for (byte[] bytes : carrierBytes) {
+      dictionaryBytes += 2 + bytes.length;
+    }
+    for (byte[] bytes : cityBytes) {
+      dictionaryBytes += 2 + bytes.length;
+    }
+
+    int live = 0;
+    for (Row r : flights) {
+      r.carrier = carrierCodes.get(r.carrierId);
+      r.origin = cityCodes.get(r.originCity);
+      r.dest = cityCodes.get(r.destCity);
+      if (!r.canceled) {
+        live++;
+      }
+    }
+    Row[] byOrigin = flights.toArray(new Row[flights.size()]);
+    Arrays.sort(byOrigin, new Comparator<Row>() {
+      @Override
+      public int compare(Row a, Row b) {
+        int c = compareInts(a.dayOfMonth, b.dayOfMonth, a.origin, b.origin);
+        return c != 0 ? c : compareInts(a.time, b.time, a.fid, b.fid);
+      }
+    });
+    final Row[] rowOf = byOrigin;
+    Integer[] byDest = new Integer[rowOf.length];
+    for (int i = 0; i < byDest.length; i++) {
+      byDest[i] = i;
+    }
+    Arrays.sort(byDest, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        Row a = rowOf[i];
+        Row b = rowOf[j];
+        int c = compareInts(a.dayOfMonth, b.dayOfMonth, a.dest, b.dest);
+        // rows are in (day, origin, time, fid) order already
+        return c != 0 ? c : Integer.compare(i, j);
+      }
+    });
+
+    int rows = rowOf.length;
+    long size = align(HEADER_BYTES + dictionaryBytes) + 24L * rows + 6L * rows + 2L * rows;
+    Path target = file.getAbsoluteFile().toPath();
+    Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        out.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(live).putInt(dictionaryBytes);
+        for (List<byte[]> dictionary : Arrays.asList(carrierBytes, cityBytes)) {
+          out.putInt(dictionary.size());
+          for (byte[] bytes : dictionary) {
+            out.putShort((short) bytes.length).put(bytes);
+          }
+        }
+        out.position(align(out.position()));
+        for (Row r : rowOf) {
+          out.putInt(r.fid);
+        }
+        for (Row r : rowOf) {
+          out.putInt(r.flightNum);
+        }
+        for (Row r : rowOf) {
+          out.putInt(r.time);
+        }
+        for (Row r : rowOf) {
+          out.putInt(r.capacity);
+        }
+        for (Row r : rowOf) {
+          out.putInt(r.price);
+        }
+        for (Integer i : byDest) {
+          out.putInt(i);
+        }
+        for (Row r : rowOf) {
+          out.putChar((char) r.carrier);
+        }
+        for (Row r : rowOf) {
+          out.putChar((char) r.origin);
+        }
+        for (Row r : rowOf) {
+          out.putChar((char) r.dest);
+        }
+        for (Row r : rowOf) {
+          out.put((byte) r.dayOfMonth);
+        }
+        for (Row r : rowOf) {
+          out.put((byte) (r.canceled ? 1 : 0));
+        }
+        out.force();
+      } finally {
+        channel.close();
+      }
+      // readers only ever see a complete snapshot
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Gives the strings codes in iteration order, returning their UTF-8 bytes
+   */
+  private static List<byte[]> encodeDictionary(Set<String> strings, Map<String, Integer> codes) throws IOException {
+    if (strings.size() > Character.MAX_VALUE + 1) {
+      throw new IOException("Too many distinct strings for a dictionary: " + strings.size());
+    }
+    List<byte[]> encoded = new ArrayList<byte[]>(strings.size());
+    for (String s : strings) {
+      codes.put(s, codes.size());
+      encoded.add(s.getBytes(StandardCharsets.UTF_8));
+    }
+    return encoded;
+  }
+
+  private static int compareInts(int a1, int b1, int a2, int b2) {
+    if (a1 != b1) {
+      return a1 < b1 ? -1 : 1;
+    }
+    return a2 < b2 ? -1 : (a2 == b2 ? 0 : 1);
+  }
+
+  /**
+   * Builds a snapshot file from the flights CSV file given as second argument,
+   * or from the database of dbconn.properties without one.
+   */
+  public static void main(String[] args) throws IOException, SQLException {
+    if (args.length < 1) {
+      System.err.println("Usage: FlightSnapshot <snapshot file> [flights csv]");
+      System.exit(1);
+    }
+    File file = new File(args[0]);
+    if (args.length > 1) {
+      Reader csv = new InputStreamReader(new FileInputStream(args[1]), StandardCharsets.UTF_8);
+      try {
+        buildFromCsv(csv, file);
+      } finally {
+        csv.close();
+      }
+    } else {
+      ConnectionPool pool = new ConnectionPool(Query.loadConfig(), 1);
+      ConnectionPool.PooledConnection c = pool.acquire();
+      try {
+        build(c.connection(), file);
+      } finally {
+        pool.release(c);
+        pool.close();
+      }
+    }
+    FlightSnapshot snapshot = open(file);
+    System.out.println("Wrote " + snapshot.size() + " flights to " + file);
+  }
+}
@@ -0,0 +1,46 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Flights of a day grouped for searching, without a round trip to the
+ * database. Cities are given by their code in {@link StringDictionary#cities()},
+ * and every returned flight is encoded. Canceled flights are never returned.
+ *
+ * @see FlightIndex
+ * @see FlightSnapshot
+ */
+public interface FlightSource {
+  /**
+   * Returns the flights leaving the given city on the given day, sorted by
+   * (actual_time, fid). The returned array must not be modified.
+   */
+  Flight[] departures(int originCity, int dayOfMonth);
+
+  /**
+   * Returns the flights arriving at the given city on the given day, indexed
+   * by the code of their origin city. Every group is sorted by (actual_time,
+   * fid); cities without flights are null or past the end of the array. The
+   * returned arrays must not be modified.
+   */
+  Flight[][] arrivals(int destCity, int dayOfMonth);
+
+  /**
+   * Returns the least actual_time of the flights arriving at the given city on
+   * the given day, indexed by the code of their origin city: the time of the
+   * first flight of every group of {@link #arrivals}, without creating the
+   * flights. Cities without flights are -1 or past the end of the array.
+   */
+  int[] fastestArrivals(int destCity, int dayOfMonth);
+
+  /**
+   * Returns up to {@code limit} direct flights between the two cities on the
+   * given day, in the same order as the DIRECT query.
+   */
+  List<Flight> direct(int originCity, int destCity, int dayOfMonth, int limit);
+
+  /**
+   * Number of flights
+   */
+  int size();
+}
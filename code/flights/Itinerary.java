@@ -0,0 +1,110 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * A direct or multi-hop itinerary returned by search and booked by its
+ * position in the session's search results. The first two legs are also kept
+ * in their own fields, -1 and null for a direct flight.
+ */
+public class Itinerary {
+  public int fid1;
+  public int fid2;
+  public int capacity1;
+  public int capacity2;
+  public int cost;
+  public int time;
+  public Flight flight1;
+  public Flight flight2;
+  // every leg, in order
+  public Flight[] flights;
+
+  Itinerary(Flight first, Flight second) {
+    flight1 = first;
+    flight2 = second;
+    fid1 = first.fid;
+    capacity1 = first.capacity;
+    cost = first.price;
+    time = first.time;
+    if (second == null) {
+      fid2 = -1;
+      capacity2 = -1;
+    } else {
+      fid2 = second.fid;
+      capacity2 = second.capacity;
+      cost += second.price;
+      time += second.time;
+    }
+    flights = second == null ? new Flight[] { first } : new Flight[] { first, second };
+  }
+
+  /**
+   * An itinerary over the given legs, in order
+   */
+  Itinerary(Flight[] legs) {
+    this(legs[0], legs.length > 1 ? legs[1] : null);
+    for (int i = 2; i < legs.length; i++) {
+      cost += legs[i].price;
+      time += legs[i].time;
+    }
+    flights = legs;
+  }
+
+  /**
+   * Number of flights in the itinerary
+   */
+  public int legs() {
+    return flights.length;
+  }
+
+  /**
+   * The fids of every leg, in order
+   */
+  int[] fids() {
+    int[] fids = new int[flights.length];
+    for (int i = 0; i < flights.length; i++) {
+      fids[i] = flights[i].fid;
+    }
+    return fids;
+  }
+
+  /**
+   * Search result order: total flight time, then fewer flights, then the fids
+   * of the flights in order. Itineraries with fewer flights win ties, as
+   * direct flights did in the original merge of the DIRECT and INDIRECT
+   * results.
+   */
+  static final Comparator<Itinerary> BY_TIME = new Comparator<Itinerary>() {
+    @Override
+    public int compare(Itinerary a, Itinerary b) {
+      if (a.time != b.time) {
+        return a.time < b.time ? -1 : 1;
+      }
+      if (a.legs() != b.legs()) {
+        return a.legs() - b.legs();
+      }
+      if (a.fid1 != b.fid1) {
+        return a.fid1 < b.fid1 ? -1 : 1;
+      }
+      if (a.fid2 != b.fid2) {
+        return a.fid2 < b.fid2 ? -1 : 1;
+      }
+      for (int i = 2; i < a.flights.length; i++) {
+        if (a.flights[i].fid != b.flights[i].fid) {
+          return a.flights[i].fid < b.flights[i].fid ? -1 : 1;
+        }
+      }
+      return 0;
+    }
+  };
+
+  /**
+   * Appends this itinerary in the search output format
+   */
+  void appendTo(StringBuffer sb, int number) {
+    sb.append("Itinerary " + number + ": " + legs() + " flight(s), " + time + " minutes\n");
+    for (Flight f : flights) {
+      sb.append(f).append("\n");
+    }
+  }
+}
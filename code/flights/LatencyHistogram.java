@@ -0,0 +1,118 @@
+package edu.uw.cs;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts latencies in buckets about 3% wide, from a microsecond up to several
+ * hours, so that many threads can record into one histogram without locking
+ * and percentiles can be read at any time.
+ *
+ * Latencies below 64 us have a bucket per microsecond. Above that, every range
+ * [2^n, 2^(n+1)) us is split into 32 buckets of equal width.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 6;
+  private static final int HALF = 1 << (SUB_BITS - 1);
+  // 2^35 us, about 9.5 hours, larger latencies are counted in the last bucket
+  private static final long MAX_MICROS = (1L << 35) - 1;
+  private static final int BUCKETS = bucket(MAX_MICROS) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  // summed per thread, recorded by every call
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalMicros = new LongAdder();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * Records one latency
+   */
+  public void record(long nanos) {
+    long micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+    counts.incrementAndGet(bucket(micros));
+    count.increment();
+    totalMicros.add(micros);
+    long max = maxMicros.get();
+    while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+      max = maxMicros.get();
+    }
+  }
+
+  /**
+   * Number of latencies recorded
+   */
+  public long count() {
+    return count.sum();
+  }
+
+  /**
+   * Mean latency in microseconds, 0 if none was recorded
+   */
+  public double meanMicros() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) totalMicros.sum() / n;
+  }
+
+  /**
+   * Largest latency recorded, in microseconds
+   */
+  public long maxMicros() {
+    return maxMicros.get();
+  }
+
+  /**
+   * Returns the latency in microseconds that the given fraction (0.5, 0.99,
+   * ...) of the recorded latencies do not exceed, rounded up to the end of its
+   * bucket, or 0 if none was recorded
+   */
+  public long percentileMicros(double fraction) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  /**
+   * Adds the latencies recorded by another histogram to this one
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = other.counts.get(i);
+      if (c != 0) {
+        counts.addAndGet(i, c);
+      }
+    }
+    count.add(other.count.sum());
+    totalMicros.add(other.totalMicros.sum());
+    long max = maxMicros.get();
+    long otherMax = other.maxMicros.get();
+    while (otherMax > max && !maxMicros.compareAndSet(max, otherMax)) {
+      max = maxMicros.get();
+    }
+  }
+
+  private static int bucket(long micros) {
+    if (micros < 2 * HALF) {
+      return (int) micros;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BITS - 1);
+    return shift * HALF + (int) (micros >> shift);
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < 2 * HALF) {
+      return bucket;
+    }
+    int shift = bucket / HALF - 1;
+    long sub = bucket - shift * HALF;
+    return ((sub + 1) << shift) - 1;
+  }
+}
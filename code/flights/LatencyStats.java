@@ -0,0 +1,56 @@
+package edu.uw.cs;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and errors of one transaction type or statement
+ */
+public class LatencyStats implements LatencyStatsMBean {
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final LongAdder errors = new LongAdder();
+
+  /**
+   * Records one call that took {@code nanos} and failed if {@code error}
+   */
+  public void record(long nanos, boolean error) {
+    latencies.record(nanos);
+    if (error) {
+      errors.increment();
+    }
+  }
+
+  @Override
+  public long getCount() {
+    return latencies.count();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    return latencies.meanMicros();
+  }
+
+  @Override
+  public long getP50Micros() {
+    return latencies.percentileMicros(0.5);
+  }
+
+  @Override
+  public long getP99Micros() {
+    return latencies.percentileMicros(0.99);
+  }
+
+  @Override
+  public long getP999Micros() {
+    return latencies.percentileMicros(0.999);
+  }
+
+  @Override
+  public long getMaxMicros() {
+    return latencies.maxMicros();
+  }
+}
@@ -0,0 +1,21 @@
+package edu.uw.cs;
+
+/**
+ * JMX view of the latencies and errors of one transaction type or statement,
+ * see {@link QueryStats}
+ */
+public interface LatencyStatsMBean {
+  long getCount();
+
+  long getErrors();
+
+  double getMeanMicros();
+
+  long getP50Micros();
+
+  long getP99Micros();
+
+  long getP999Micros();
+
+  long getMaxMicros();
+}
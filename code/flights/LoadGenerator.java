@@ -0,0 +1,495 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the scripts of the "unit tests" directory with many concurrent
+ * sessions, for sizing a deployment and for checking concurrency changes.
+ *
+ * A script has a block of commands for every user, each followed by its
+ * expected output, all ended by a line with a single {@code *}. Every replay
+ * of a script runs each of its user blocks as a new session through
+ * {@link FlightService#execute}, with the usernames of the replay made unique,
+ * and the blocks of one replay are queued together so they run side by side.
+ * With {@code --mix} the sessions instead run a synthetic mix for a number of
+ * seconds: one user after the other, each modeled on a random user block of the
+ * scripts but searching the route of a random search of the scripts and booking
+ * a random itinerary of the results.
+ *
+ * With {@code --rate} the commands of all sessions are started at that many per
+ * second, and latencies are measured from the time a command was due rather
+ * than from when it was sent, so a slow server is not hidden by the generator
+ * waiting for it. The report has the throughput and the latency percentiles of
+ * every command type, and the correctness violations found: reservation ids
+ * handed out twice, flights with more reservations than seats and users with a
+ * negative balance.
+ *
+ * Usage: {@code java edu.uw.cs.LoadGenerator [--sessions N] [--rate N]
+ * [--repeat N] [--mix SECONDS] <script file or directory>...}
+ */
+public class LoadGenerator {
+  private static final String BOOKED = "Booked flight(s), reservation ID: ";
+
+  // flights with more live reservations than seats
+  private static final String OVERSOLD = "SELECT F.fid, F.capacity, COUNT(*) FROM Flights F, Reservations R "
+          + "WHERE R.canceled = 0 AND (R.fid1 = F.fid OR R.fid2 = F.fid "
+          + "OR EXISTS (SELECT * FROM ReservationLegs L WHERE L.rid = R.rid AND L.fid = F.fid)) "
+          + "GROUP BY F.fid, F.capacity HAVING COUNT(*) > F.capacity";
+  private static final String NEGATIVE_CAPACITIES = "SELECT fid, capacity FROM Capacities WHERE capacity < 0";
+  private static final String NEGATIVE_BALANCES = "SELECT username, balance FROM Users WHERE balance < 0";
+
+  private final ConnectionPool pool;
+  private final int sessions;
+  // nanoseconds between two commands, 0 for as fast as possible
+  private final long interval;
+  private FlightSource flightIndex;
+  private SeatInventory seatInventory;
+
+  private final ConcurrentHashMap<String, CommandStats> stats = new ConcurrentHashMap<String, CommandStats>();
+  private final ConcurrentHashMap<Integer, String> reservationIds = new ConcurrentHashMap<Integer, String>();
+  private final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+  private final AtomicLong tickets = new AtomicLong();
+  private final AtomicInteger replays = new AtomicInteger();
+  private long start;
+
+  /**
+   * Latencies and failed responses of one command type
+   */
+  static class CommandStats {
+    final LatencyHistogram latencies = new LatencyHistogram();
+    final AtomicLong failures = new AtomicLong();
+  }
+
+  /**
+   * The user blocks of one script, without their expected outputs
+   */
+  static class Script {
+    final String name;
+    final List<List<String>> users = new ArrayList<List<String>>();
+
+    Script(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Reads a script, keeping every other block: the commands of a user but not
+     * the expected output that follows them
+     */
+    static Script read(File file) throws IOException {
+      Script script = new Script(file.getName());
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+        List<String> block = new ArrayList<String>();
+        boolean commands = true;
+        String line;
+        while ((line = in.readLine()) != null) {
+          String trimmed = line.trim();
+          // a separator line may have a comment after the *
+          if (trimmed.startsWith("*")) {
+            if (commands) {
+              script.users.add(block);
+            }
+            block = new ArrayList<String>();
+            commands = !commands;
+          } else if (commands && !trimmed.isEmpty() && !trimmed.startsWith("#") && !trimmed.equals("quit")) {
+            block.add(trimmed);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      return script;
+    }
+  }
+
+  public LoadGenerator(ConnectionPool pool, int sessions, double rate) {
+    this.pool = pool;
+    this.sessions = sessions;
+    this.interval = rate > 0 ? (long) (1e9 / rate) : 0;
+  }
+
+  /**
+   * Answers the searches of all sessions from the given index or snapshot, and
+   * books seats through the given inventory, if not null
+   */
+  public void share(FlightSource flightIndex, SeatInventory seatInventory) {
+    this.flightIndex = flightIndex;
+    this.seatInventory = seatInventory;
+  }
+
+  /**
+   * Replays every script {@code repeat} times, the replays running on the
+   * sessions in turn
+   */
+  public void replay(List<Script> scripts, int repeat) throws InterruptedException {
+    final BlockingQueue<List<String>> blocks = new LinkedBlockingQueue<List<String>>();
+    for (int i = 0; i < repeat; i++) {
+      for (Script script : scripts) {
+        String suffix = "." + Integer.toString(replays.getAndIncrement(), 36);
+        for (List<String> user : script.users) {
+          blocks.add(rename(user, suffix));
+        }
+      }
+    }
+    run(new Runnable() {
+      @Override
+      public void run() {
+        List<String> block;
+        while ((block = blocks.poll()) != null) {
+          Query q = session();
+          if (q == null) {
+            return;
+          }
+          for (String command : block) {
+            execute(q, command);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs a synthetic mix derived from the scripts on every session for the
+   * given number of seconds
+   */
+  public void mix(List<Script> scripts, long seconds) throws InterruptedException {
+    final Mix mix = new Mix(scripts);
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    run(new Runnable() {
+      @Override
+      public void run() {
+        Random random = new Random();
+        while (System.nanoTime() < deadline) {
+          Query q = session();
+          if (q == null) {
+            return;
+          }
+          mix.runUser(LoadGenerator.this, q, random, "." + Integer.toString(replays.getAndIncrement(), 36),
+              deadline);
+        }
+      }
+    });
+  }
+
+  private void run(Runnable session) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(sessions);
+    start = System.nanoTime();
+    for (int i = 0; i < sessions; i++) {
+      executor.execute(session);
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  private Query session() {
+    try {
+      Query q = new Query(pool);
+      q.prepareStatements();
+      q.setFlightIndex(flightIndex);
+      q.setSeatInventory(seatInventory);
+      return q;
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Runs one command at its turn, recording its latency and checking its
+   * response
+   */
+  String execute(Query q, String command) {
+    long due;
+    if (interval > 0) {
+      due = start + tickets.getAndIncrement() * interval;
+      long wait = due - System.nanoTime();
+      while (wait > 0) {
+        LockSupport.parkNanos(wait);
+        wait = due - System.nanoTime();
+      }
+    } else {
+      due = System.nanoTime();
+    }
+    String response = FlightService.execute(q, command);
+    long latency = System.nanoTime() - due;
+
+    String type = command.split(" ", 2)[0];
+    CommandStats s = stats.get(type);
+    if (s == null) {
+      stats.putIfAbsent(type, new CommandStats());
+      s = stats.get(type);
+    }
+    s.latencies.record(latency);
+    if (response.contains("ailed") || response.startsWith("Error")) {
+      s.failures.incrementAndGet();
+    }
+    if (response.startsWith(BOOKED)) {
+      int rid = Integer.parseInt(response.substring(BOOKED.length()).trim());
+      String previous = reservationIds.putIfAbsent(rid, command);
+      if (previous != null) {
+        violations.add("reservation id " + rid + " handed out twice");
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Checks the tables for oversold flights and negative balances, writing back
+   * the seat inventory first if there is one
+   */
+  public void checkTables() throws SQLException {
+    if (seatInventory != null) {
+      seatInventory.close();
+      seatInventory = null;
+    }
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      Statement stmt = c.connection().createStatement();
+      ResultSet rs = stmt.executeQuery(OVERSOLD);
+      while (rs.next()) {
+        violations.add("flight " + rs.getInt(1) + " has " + rs.getInt(3) + " reservations for " + rs.getInt(2)
+            + " seats");
+      }
+      rs.close();
+      rs = stmt.executeQuery(NEGATIVE_CAPACITIES);
+      while (rs.next()) {
+        violations.add("flight " + rs.getInt(1) + " has " + rs.getInt(2) + " seats left");
+      }
+      rs.close();
+      rs = stmt.executeQuery(NEGATIVE_BALANCES);
+      while (rs.next()) {
+        violations.add("user " + rs.getString(1) + " has a balance of " + rs.getInt(2));
+      }
+      rs.close();
+      stmt.close();
+    } finally {
+      pool.release(c);
+    }
+  }
+
+  /**
+   * Prints the throughput and latencies of every command type and the
+   * violations found
+   */
+  public void report(PrintStream out) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    out.printf("%d sessions, %.1f s%n", sessions, seconds);
+    out.printf("%-14s %9s %8s %9s %9s %9s %9s %9s%n", "command", "count", "failed", "ops/s", "p50 ms", "p99 ms",
+        "p999 ms", "max ms");
+    List<String> types = new ArrayList<String>(stats.keySet());
+    Collections.sort(types);
+    LatencyHistogram all = new LatencyHistogram();
+    long failures = 0;
+    for (String type : types) {
+      CommandStats s = stats.get(type);
+      print(out, type, s.latencies, s.failures.get(), seconds);
+      all.add(s.latencies);
+      failures += s.failures.get();
+    }
+    print(out, "all", all, failures, seconds);
+    out.println(violations.size() + " violations");
+    for (String violation : violations) {
+      out.println("  " + violation);
+    }
+  }
+
+  private static void print(PrintStream out, String type, LatencyHistogram h, long failures, double seconds) {
+    out.printf("%-14s %9d %8d %9.1f %9.2f %9.2f %9.2f %9.2f%n", type, h.count(), failures, h.count() / seconds,
+        h.percentileMicros(0.5) / 1e3, h.percentileMicros(0.99) / 1e3, h.percentileMicros(0.999) / 1e3,
+        h.maxMicros() / 1e3);
+  }
+
+  /**
+   * Gives the users of a block the given suffix, so replays of the same script
+   * do not share users
+   */
+  static List<String> rename(List<String> block, String suffix) {
+    List<String> renamed = new ArrayList<String>(block.size());
+    for (String command : block) {
+      String[] tokens = FlightService.tokenize(command);
+      if (tokens.length >= 2 && (tokens[0].equals("create") || tokens[0].equals("login"))) {
+        // usernames have at most 20 characters
+        String name = tokens[1];
+        tokens[1] = name.substring(0, Math.min(name.length(), 20 - suffix.length())) + suffix;
+        renamed.add(join(tokens));
+      } else {
+        renamed.add(command);
+      }
+    }
+    return renamed;
+  }
+
+  static String join(String[] tokens) {
+    StringBuilder sb = new StringBuilder();
+    for (String token : tokens) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      if (token.indexOf(' ') >= 0) {
+        sb.append('"').append(token).append('"');
+      } else {
+        sb.append(token);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Users modeled on the user blocks of a set of scripts
+   */
+  static class Mix {
+    final List<List<String>> users = new ArrayList<List<String>>();
+    final List<String> searches = new ArrayList<String>();
+
+    Mix(List<Script> scripts) {
+      for (Script script : scripts) {
+        for (List<String> user : script.users) {
+          if (!user.isEmpty()) {
+            users.add(user);
+          }
+          for (String command : user) {
+            if (command.startsWith("search ")) {
+              searches.add(command);
+            }
+          }
+        }
+      }
+      if (users.isEmpty() || searches.isEmpty()) {
+        throw new IllegalArgumentException("The scripts have no searches to mix");
+      }
+    }
+
+    /**
+     * Runs the commands of a random user block on the session with its own
+     * users. Every search takes the route of a random search of the scripts,
+     * and pay and cancel the reservation last booked by the session.
+     */
+    void runUser(LoadGenerator generator, Query q, Random random, String suffix, long deadline) {
+      List<String> user = rename(users.get(random.nextInt(users.size())), suffix);
+      int itineraries = 0;
+      int rid = -1;
+      for (String command : user) {
+        if (System.nanoTime() >= deadline) {
+          return;
+        }
+        String[] tokens = FlightService.tokenize(command);
+        if (tokens[0].equals("search")) {
+          command = searches.get(random.nextInt(searches.size()));
+        } else if (tokens[0].equals("book") && itineraries > 0) {
+          command = "book " + random.nextInt(itineraries);
+        } else if ((tokens[0].equals("pay") || tokens[0].equals("cancel")) && rid != -1) {
+          command = tokens[0] + " " + rid;
+        }
+        String response = generator.execute(q, command);
+        if (tokens[0].equals("search")) {
+          itineraries = countLines(response, "Itinerary ");
+        } else if (response.startsWith(BOOKED)) {
+          rid = Integer.parseInt(response.substring(BOOKED.length()).trim());
+        }
+      }
+    }
+
+    private static int countLines(String response, String prefix) {
+      int count = 0;
+      for (String line : response.split("\n")) {
+        if (line.startsWith(prefix)) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Reads the scripts among the given files and directories, skipping files
+   * without a complete user block such as "test results.txt"
+   */
+  static List<Script> readScripts(List<String> paths) throws IOException {
+    List<File> files = new ArrayList<File>();
+    for (String path : paths) {
+      File file = new File(path);
+      if (file.isDirectory()) {
+        File[] children = file.listFiles();
+        Arrays.sort(children);
+        files.addAll(Arrays.asList(children));
+      } else {
+        files.add(file);
+      }
+    }
+    List<Script> scripts = new ArrayList<Script>();
+    for (File file : files) {
+      if (file.isFile()) {
+        Script script = Script.read(file);
+        if (!script.users.isEmpty()) {
+          scripts.add(script);
+        }
+      }
+    }
+    return scripts;
+  }
+
+  public static void main(String[] args) throws IOException, SQLException, InterruptedException {
+    int sessions = 16;
+    double rate = 0;
+    int repeat = 1;
+    long mixSeconds = 0;
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      if (args[i].equals("--sessions")) {
+        sessions = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--rate")) {
+        rate = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("--repeat")) {
+        repeat = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--mix")) {
+        mixSeconds = Long.parseLong(args[++i]);
+      } else {
+        i = args.length;
+      }
+    }
+    if (i >= args.length) {
+      System.err.println("Usage: LoadGenerator [--sessions N] [--rate N] [--repeat N] [--mix SECONDS] "
+          + "<script file or directory>...");
+      System.exit(1);
+    }
+    List<Script> scripts = readScripts(Arrays.asList(args).subList(i, args.length));
+
+    Properties config = Query.loadConfig();
+    int poolSize = Integer.parseInt(config.getProperty("flights.pool_size", String.valueOf(sessions)));
+    ConnectionPool pool = new ConnectionPool(config, poolSize);
+    try {
+      LoadGenerator generator = new LoadGenerator(pool, sessions, rate);
+      Query q = new Query(pool);
+      q.prepareStatements();
+      StringDictionary.seed(config);
+      FlightSource flightIndex = null;
+      String snapshot = config.getProperty("flights.snapshot", "");
+      if (!snapshot.isEmpty()) {
+        flightIndex = q.openFlightSnapshot(snapshot);
+      } else if (Boolean.parseBoolean(config.getProperty("flights.search_index", "false"))) {
+        flightIndex = q.loadFlightIndex();
+      }
+      SeatInventory seatInventory = null;
+      if (Boolean.parseBoolean(config.getProperty("flights.seat_inventory", "false"))) {
+        seatInventory = q.startSeatInventory();
+      }
+      generator.share(flightIndex, seatInventory);
+
+      if (mixSeconds > 0) {
+        generator.mix(scripts, mixSeconds);
+      } else {
+        generator.replay(scripts, repeat);
+      }
+      generator.checkTables();
+      generator.report(System.out);
+    } finally {
+      pool.close();
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Finds the fastest itineraries of a day with one up to {@code maxStops}
+ * stops from a {@link FlightSource}. An itinerary never stops twice in the
+ * same city, nor in its origin or destination, but may end where it started:
+ * like the INDIRECT query, a search from a city to itself finds round trips.
+ *
+ * Partial itineraries are expanded best first, in the order of their flight
+ * time so far, from a priority queue. Three bounds keep the search small:
+ * <ul>
+ * <li>Before searching, the least flight time from every city to the
+ * destination with each number of remaining legs is computed backwards from
+ * the destination. A partial itinerary that cannot reach the destination, or
+ * only slower than the current k-th best itinerary, is dropped.</li>
+ * <li>Only the best {@code limit} itineraries are kept, and the search stops
+ * once the next partial itinerary is slower than the k-th of them.</li>
+ * <li>A partial itinerary reaching a city is dominated once {@code limit}
+ * others were expanded there that were at least as fast, with no more legs,
+ * and whose stops are among its own stops. Every way to finish it also
+ * finishes each of them, which makes {@code limit} itineraries at least as
+ * good, so it is not expanded.</li>
+ * </ul>
+ * The result is the same as ranking every itinerary with up to
+ * {@code maxStops} stops, like the INDIRECT query does for one stop.
+ *
+ * The least flight times to a destination are kept for the 1024 most recently
+ * searched destinations and days of every flight source, shared by all
+ * sessions searching it.
+ */
+public class MultiHopSearch {
+  // the stops of a partial itinerary are packed into a long with the city
+  private static final int CODE_BITS = 16;
+  public static final int MAX_STOPS = 64 / CODE_BITS - 1;
+
+  private static final int UNREACHABLE = Integer.MAX_VALUE / 2;
+
+  private static final int BOUNDS_ENTRIES = 1024;
+
+  // least flight times to a destination by source, then by stops, destination
+  // and day
+  private static final Map<FlightSource, Map<Long, int[][]>> BOUNDS =
+      new WeakHashMap<FlightSource, Map<Long, int[][]>>();
+
+  private final FlightSource index;
+  private final int maxStops;
+  private final Map<Long, int[][]> bounds;
+
+  /**
+   * @param maxStops the most stops of an itinerary, from 1 to
+   *                 {@link #MAX_STOPS}
+   */
+  public MultiHopSearch(FlightSource index, int maxStops) {
+    if (maxStops < 1 || maxStops > MAX_STOPS) {
+      throw new IllegalArgumentException("Stops must be between 1 and " + MAX_STOPS + ", not " + maxStops);
+    }
+    this.index = index;
+    this.maxStops = maxStops;
+    this.bounds = bounds(index);
+  }
+
+  private static Map<Long, int[][]> bounds(FlightSource index) {
+    synchronized (BOUNDS) {
+      Map<Long, int[][]> bounds = BOUNDS.get(index);
+      if (bounds == null) {
+        bounds = new LinkedHashMap<Long, int[][]>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, int[][]> eldest) {
+            return size() > BOUNDS_ENTRIES;
+          }
+        };
+        BOUNDS.put(index, bounds);
+      }
+      return bounds;
+    }
+  }
+
+  /**
+   * A partial itinerary from the origin, expanded from its last city
+   */
+  private static final class Label {
+    final Flight[] flights;
+    final int time;
+
+    Label(Flight[] flights, int time) {
+      this.flights = flights;
+      this.time = time;
+    }
+
+    int city() {
+      return flights[flights.length - 1].destCode;
+    }
+
+    Label extend(Flight next) {
+      Flight[] longer = Arrays.copyOf(flights, flights.length + 1);
+      longer[flights.length] = next;
+      return new Label(longer, time + next.time);
+    }
+
+    boolean visits(int city) {
+      if (flights[0].originCode == city) {
+        return true;
+      }
+      for (Flight f : flights) {
+        if (f.destCode == city) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Expansion order: flight time, then fewer legs, then fids, so that labels
+   * reach every city in the order of the itineraries they can become
+   */
+  private static final Comparator<Label> EXPANSION_ORDER = new Comparator<Label>() {
+    @Override
+    public int compare(Label a, Label b) {
+      if (a.time != b.time) {
+        return a.time < b.time ? -1 : 1;
+      }
+      if (a.flights.length != b.flights.length) {
+        return a.flights.length - b.flights.length;
+      }
+      for (int i = 0; i < a.flights.length; i++) {
+        if (a.flights[i].fid != b.flights[i].fid) {
+          return a.flights[i].fid < b.flights[i].fid ? -1 : 1;
+        }
+      }
+      return 0;
+    }
+  };
+
+  /**
+   * Returns up to {@code limit} itineraries with at least one stop, sorted by
+   * total flight time as {@link Itinerary#BY_TIME} does.
+   */
+  public List<Itinerary> search(int originCity, int destCity, int dayOfMonth, int limit) {
+    List<Itinerary> results = new ArrayList<Itinerary>();
+    if (limit <= 0 || originCity < 0 || destCity < 0) {
+      return results;
+    }
+    int[][] toDest = lowerBounds(destCity, dayOfMonth);
+    // dominance keys hold city codes plus one in 16 bits
+    boolean prune = StringDictionary.cities().size() < (1 << CODE_BITS) - 1;
+
+    // limit comes from the user, the heap grows past its initial capacity
+    PriorityQueue<Itinerary> best = new PriorityQueue<Itinerary>(Math.min(limit, 1024) + 1,
+        Collections.reverseOrder(Itinerary.BY_TIME));
+    PriorityQueue<Label> open = new PriorityQueue<Label>(64, EXPANSION_ORDER);
+    // labels expanded by city and stops
+    Map<Long, Integer> expanded = new HashMap<Long, Integer>();
+
+    int legs = maxStops + 1;
+    for (Flight first : index.departures(originCity, dayOfMonth)) {
+      if (first.destCode != destCity && reachable(toDest, first.destCode, legs - 1, first.time, best, limit)) {
+        open.add(new Label(new Flight[] { first }, first.time));
+      }
+    }
+    while (!open.isEmpty()) {
+      Label label = open.poll();
+      if (best.size() == limit && label.time > best.peek().time) {
+        break;
+      }
+      if (prune && dominated(expanded, label, limit)) {
+        continue;
+      }
+      int remaining = legs - label.flights.length;
+      for (Flight next : index.departures(label.city(), dayOfMonth)) {
+        // departures are sorted by time, later ones are no faster
+        if (best.size() == limit && label.time + next.time > best.peek().time) {
+          break;
+        }
+        // the destination ends the itinerary even if it is the origin
+        if (next.destCode == destCity) {
+          Itinerary candidate = new Itinerary(label.extend(next).flights);
+          if (best.size() < limit) {
+            best.add(candidate);
+          } else if (Itinerary.BY_TIME.compare(candidate, best.peek()) < 0) {
+            best.poll();
+            best.add(candidate);
+          }
+        } else if (remaining > 1 && !label.visits(next.destCode)
+            && reachable(toDest, next.destCode, remaining - 1, label.time + next.time, best, limit)) {
+          open.add(label.extend(next));
+        }
+      }
+    }
+
+    results.addAll(best);
+    Collections.sort(results, Itinerary.BY_TIME);
+    return results;
+  }
+
+  /**
+   * True if an itinerary reaching {@code city} after {@code time} minutes can
+   * still reach the destination in at most {@code legs} legs and make the best
+   * itineraries
+   */
+  private static boolean reachable(int[][] toDest, int city, int legs, int time, PriorityQueue<Itinerary> best,
+      int limit) {
+    int rest = city < toDest[legs].length ? toDest[legs][city] : UNREACHABLE;
+    if (rest == UNREACHABLE) {
+      return false;
+    }
+    return best.size() < limit || time + rest <= best.peek().time;
+  }
+
+  /**
+   * The least flight time from every city to the destination in at most n
+   * legs, for n from 0 to maxStops + 1, UNREACHABLE if none. The returned
+   * arrays are shared and must not be modified.
+   */
+  private int[][] lowerBounds(int destCity, int dayOfMonth) {
+    long key = ((long) maxStops << 48) | ((long) dayOfMonth << 32) | destCity;
+    int[][] toDest;
+    synchronized (bounds) {
+      toDest = bounds.get(key);
+    }
+    // the flights never change, so a bound computed twice is the same
+    if (toDest == null) {
+      toDest = computeLowerBounds(destCity, dayOfMonth);
+      synchronized (bounds) {
+        bounds.put(key, toDest);
+      }
+    }
+    return toDest;
+  }
+
+  private int[][] computeLowerBounds(int destCity, int dayOfMonth) {
+    int cities = StringDictionary.cities().size();
+    // the fastest flight from every origin into a city, read once per city
+    int[][] fastest = new int[cities][];
+    int[][] toDest = new int[maxStops + 2][cities];
+    Arrays.fill(toDest[0], UNREACHABLE);
+    toDest[0][destCity] = 0;
+    for (int n = 1; n <= maxStops + 1; n++) {
+      System.arraycopy(toDest[n - 1], 0, toDest[n], 0, cities);
+      for (int city = 0; city < cities; city++) {
+        if (toDest[n - 1][city] == UNREACHABLE) {
+          continue;
+        }
+        if (fastest[city] == null) {
+          fastest[city] = index.fastestArrivals(city, dayOfMonth);
+        }
+        int[] arrivals = fastest[city];
+        for (int origin = 0; origin < arrivals.length && origin < cities; origin++) {
+          if (arrivals[origin] >= 0) {
+            int time = arrivals[origin] + toDest[n - 1][city];
+            if (time < toDest[n][origin]) {
+              toDest[n][origin] = time;
+            }
+          }
+        }
+      }
+    }
+    return toDest;
+  }
+
+  /**
+   * Counts the expansion of a label unless {@code limit} labels at its city
+   * with a subset of its stops were expanded before
+   */
+  private static boolean dominated(Map<Long, Integer> expanded, Label label, int limit) {
+    int city = label.city();
+    // the stops before the city, sorted
+    int n = label.flights.length - 1;
+    int[] stops = new int[n];
+    for (int i = 0; i < n; i++) {
+      stops[i] = label.flights[i].destCode;
+    }
+    Arrays.sort(stops);
+    int dominating = 0;
+    for (int subset = 0; subset < 1 << n; subset++) {
+      Integer count = expanded.get(key(city, stops, subset));
+      if (count != null) {
+        dominating += count;
+      }
+    }
+    if (dominating >= limit) {
+      return true;
+    }
+    long own = key(city, stops, (1 << n) - 1);
+    Integer count = expanded.get(own);
+    expanded.put(own, count == null ? 1 : count + 1);
+    return false;
+  }
+
+  /**
+   * Packs a city and a subset of sorted stops, each code plus one in its own
+   * 16 bits. The city's field is never 0, so keys with a different number of
+   * stops never collide.
+   */
+  private static long key(int city, int[] stops, int subset) {
+    long key = city + 1;
+    for (int i = 0; i < stops.length; i++) {
+      if ((subset & (1 << i)) != 0) {
+        key = (key << CODE_BITS) | (stops[i] + 1);
+      }
+    }
+    return key;
+  }
+}
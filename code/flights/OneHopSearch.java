@@ -0,0 +1,75 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Finds the fastest one-hop itineraries of a day from a {@link FlightSource}.
+ *
+ * The first legs leaving the origin are joined to the legs reaching the
+ * destination through their grouping by connection city code. Only the best
+ * {@code limit} candidates are kept, in a max-heap whose root is the current
+ * k-th best itinerary. Both leg lists are sorted by time, so the scan of a
+ * connection stops at the first pair slower than the root, and the whole search
+ * stops once a first leg plus the fastest possible second leg is slower.
+ */
+public class OneHopSearch {
+  private final FlightSource index;
+
+  public OneHopSearch(FlightSource index) {
+    this.index = index;
+  }
+
+  /**
+   * Returns up to {@code limit} one-hop itineraries, sorted by total flight
+   * time and fid as the INDIRECT query does.
+   */
+  public List<Itinerary> search(int originCity, int destCity, int dayOfMonth, int limit) {
+    List<Itinerary> results = new ArrayList<Itinerary>();
+    if (limit <= 0) {
+      return results;
+    }
+    Flight[][] connections = index.arrivals(destCity, dayOfMonth);
+    int fastestSecond = Integer.MAX_VALUE;
+    for (Flight[] seconds : connections) {
+      if (seconds != null) {
+        fastestSecond = Math.min(fastestSecond, seconds[0].time);
+      }
+    }
+    if (fastestSecond == Integer.MAX_VALUE) {
+      return results;
+    }
+
+    // limit comes from the user, the heap grows past its initial capacity
+    PriorityQueue<Itinerary> best = new PriorityQueue<Itinerary>(Math.min(limit, 1024) + 1,
+        Collections.reverseOrder(Itinerary.BY_TIME));
+    for (Flight first : index.departures(originCity, dayOfMonth)) {
+      // later first legs are no faster, so nothing else can make the top k
+      if (best.size() == limit && first.time + fastestSecond > best.peek().time) {
+        break;
+      }
+      Flight[] seconds = first.destCode < connections.length ? connections[first.destCode] : null;
+      if (seconds == null) {
+        continue;
+      }
+      for (Flight second : seconds) {
+        if (best.size() == limit) {
+          Itinerary worst = best.peek();
+          if (first.time + second.time > worst.time) {
+            break;
+          }
+          Itinerary candidate = new Itinerary(first, second);
+          if (Itinerary.BY_TIME.compare(candidate, worst) < 0) {
+            best.poll();
+            best.add(candidate);
+          }
+        } else {
+          best.add(new Itinerary(first, second));
+        }
+      }
+    }
+
+    results.addAll(best);
+    Collections.sort(results, Itinerary.BY_TIME);
+    return results;
+  }
+}
@@ -0,0 +1,207 @@
+package edu.uw.cs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.*;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Salted PBKDF2 password hashes, derived on a pool of threads of their own and
+ * shared by all sessions of the process.
+ *
+ * A hash takes tens of milliseconds of CPU, so it never runs on a session
+ * thread: at most {@code flights.hash_threads} hashes are derived at once and
+ * at most {@code flights.hash_queue} more wait for a thread. A login or
+ * account creation beyond that fails at once instead of piling up, and
+ * bookings keep the remaining cores however many users log in.
+ *
+ * A successful login is remembered for {@code flights.credential_cache_ms}
+ * milliseconds, so logging in again with the same password checks a keyed
+ * SHA-256 digest instead of deriving the hash again. A remembered login only
+ * counts while the user's stored hash is unchanged.
+ */
+public class PasswordHasher {
+  // PBKDF2 parameters, the key length matches the Users.password column
+  private static final int HASH_STRENGTH = 65536;
+  private static final int KEY_LENGTH = 128;
+  private static final int SALT_LENGTH = 16;
+
+  private static final AtomicReference<PasswordHasher> SHARED = new AtomicReference<PasswordHasher>();
+
+  private final ThreadPoolExecutor executor;
+  private final SecureRandom random = new SecureRandom();
+
+  // verified logins by username, null if disabled
+  private final LinkedHashMap<String, Credential> verified;
+  private final long ttlNanos;
+  // key of the digests of verified passwords, never leaves the process
+  private final byte[] digestKey = new byte[32];
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+  /**
+   * A verified login: the stored hash it was checked against and the keyed
+   * digest of the salt and password
+   */
+  private static class Credential {
+    final byte[] hash;
+    final byte[] digest;
+    final long expires;
+
+    Credential(byte[] hash, byte[] digest, long expires) {
+      this.hash = hash;
+      this.digest = digest;
+      this.expires = expires;
+    }
+  }
+
+  public PasswordHasher(int threads, int queueLimit, final int cacheEntries, long cacheMillis) {
+    final AtomicInteger count = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueLimit), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "password-hasher-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.ttlNanos = cacheMillis * 1000000L;
+    if (cacheEntries > 0 && cacheMillis > 0) {
+      this.verified = new LinkedHashMap<String, Credential>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Credential> eldest) {
+          return size() > cacheEntries;
+        }
+      };
+    } else {
+      this.verified = null;
+    }
+    random.nextBytes(digestKey);
+  }
+
+  /**
+   * Returns the hasher shared by all sessions of this process, configured by
+   * the first caller's {@code flights.hash_*} and
+   * {@code flights.credential_cache_*} settings
+   */
+  static PasswordHasher shared(Properties config) {
+    PasswordHasher hasher = SHARED.get();
+    if (hasher == null) {
+      int cores = Runtime.getRuntime().availableProcessors();
+      int threads = Integer.parseInt(config.getProperty("flights.hash_threads", String.valueOf(Math.max(1, cores / 2))));
+      int queue = Integer.parseInt(config.getProperty("flights.hash_queue", "256"));
+      int entries = Integer.parseInt(config.getProperty("flights.credential_cache_entries", "10000"));
+      long ttl = Long.parseLong(config.getProperty("flights.credential_cache_ms", "60000"));
+      PasswordHasher created = new PasswordHasher(threads, queue, entries, ttl);
+      if (!SHARED.compareAndSet(null, created)) {
+        created.executor.shutdown();
+      }
+      hasher = SHARED.get();
+    }
+    return hasher;
+  }
+
+  /**
+   * A new random salt
+   */
+  public byte[] salt() {
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    return salt;
+  }
+
+  /**
+   * Derives the hash of a password on the hashing threads and waits for it
+   *
+   * @throws SQLException if too many hashes are waiting already, so the
+   *                      caller fails like on a database error
+   */
+  public byte[] hash(final String password, final byte[] salt) throws SQLException {
+    Future<byte[]> hash;
+    try {
+      hash = executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws GeneralSecurityException {
+          KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+          SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+          return factory.generateSecret(spec).getEncoded();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      throw new SQLException("Too many password hashes waiting", e);
+    }
+    try {
+      return hash.get();
+    } catch (InterruptedException e) {
+      hash.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while hashing a password", e);
+    } catch (ExecutionException e) {
+      throw new SQLException("Cannot hash a password", e.getCause());
+    }
+  }
+
+  /**
+   * True if the password matches the stored salt and hash of the user. A
+   * match is remembered for later logins of the user.
+   */
+  public boolean verify(String username, String password, byte[] salt, byte[] stored) throws SQLException {
+    if (salt == null || stored == null) {
+      return false;
+    }
+    byte[] digest = verified == null ? null : digest(password, salt);
+    if (digest != null) {
+      synchronized (verified) {
+        Credential c = verified.get(username);
+        if (c != null && c.expires - System.nanoTime() > 0 && Arrays.equals(c.hash, stored)
+            && MessageDigest.isEqual(c.digest, digest)) {
+          return true;
+        }
+      }
+    }
+    if (!MessageDigest.isEqual(hash(password, salt), stored)) {
+      return false;
+    }
+    remember(username, stored, digest);
+    return true;
+  }
+
+  /**
+   * Remembers the password of a user just created with the given salt and
+   * hash, so the first login skips the hashing too
+   */
+  public void remember(String username, String password, byte[] salt, byte[] hash) throws SQLException {
+    if (verified != null) {
+      remember(username, hash, digest(password, salt));
+    }
+  }
+
+  private void remember(String username, byte[] stored, byte[] digest) {
+    if (digest == null) {
+      return;
+    }
+    synchronized (verified) {
+      verified.put(username, new Credential(stored, digest, System.nanoTime() + ttlNanos));
+    }
+  }
+
+  private byte[] digest(String password, byte[] salt) throws SQLException {
+    try {
+      Mac mac = macs.get();
+      if (mac == null) {
+        mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(digestKey, "HmacSHA256"));
+        macs.set(mac);
+      }
+      mac.update(salt);
+      return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new SQLException("Cannot digest a password", e);
+    }
+  }
+}
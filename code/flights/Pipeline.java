@@ -0,0 +1,195 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the tagged commands of one pipelined session without waiting for the
+ * client to read each response, and writes the responses back in the order
+ * of the commands.
+ *
+ * The session behaves as if its commands ran one after the other: a command
+ * other than {@code search}, {@code skyline} and {@code reservations} starts
+ * once every earlier command has finished, and later commands wait for it.
+ * Read-only commands between two such commands run at the same time, each on
+ * a fork of the session with its own connection, so their database round
+ * trips overlap. The results of the last search among them become the session's
+ * for {@code book}.
+ *
+ * At most {@code depth} commands are in flight; {@link #submit} waits for a
+ * response to be written when that many are.
+ */
+class Pipeline {
+  private final Query session;
+  private final Executor executor;
+  private final Writer out;
+  private final Semaphore depth;
+
+  // forks of the session for read-only commands, idle ones kept for reuse
+  private final ArrayDeque<Query> forks = new ArrayDeque<Query>();
+
+  // commands whose responses are not written yet, in order, guards out too
+  private final ArrayDeque<Command> pending = new ArrayDeque<Command>();
+  private IOException writeError;
+
+  // completes when the last command that is not read-only has, and the
+  // read-only commands submitted since then
+  private CompletableFuture<Void> barrier = CompletableFuture.completedFuture(null);
+  private final List<Command> reads = new ArrayList<Command>();
+
+  private static class Command {
+    final String tag;
+    final CommandTokenizer words;
+    volatile String response;
+    // the session's search results after a read-only command that searched
+    List<Itinerary> searchResults;
+    CompletableFuture<Void> done;
+
+    Command(String tag, CommandTokenizer words) {
+      this.tag = tag;
+      this.words = words;
+    }
+  }
+
+  Pipeline(Query session, Executor executor, Writer out, int depth) {
+    this.session = session;
+    this.executor = executor;
+    this.out = out;
+    this.depth = new Semaphore(depth);
+  }
+
+  /**
+   * Starts a command, given as its words. Its response is written once it and
+   * every earlier command have finished.
+   *
+   * @throws IOException if writing an earlier response failed
+   */
+  void submit(String tag, CommandTokenizer words) throws IOException, InterruptedException {
+    depth.acquire();
+    final Command command = new Command(tag, words);
+    synchronized (pending) {
+      if (writeError != null) {
+        depth.release();
+        throw writeError;
+      }
+      pending.add(command);
+    }
+    String name = words.count() == 0 ? "" : words.token(0);
+    if (name.equals("search") || name.equals("skyline") || name.equals("reservations")) {
+      command.done = barrier.thenRunAsync(() -> read(command), executor);
+      reads.add(command);
+    } else {
+      final List<Command> before = new ArrayList<Command>(reads);
+      CompletableFuture<?>[] waits = new CompletableFuture<?>[before.size() + 1];
+      waits[0] = barrier;
+      for (int i = 0; i < before.size(); i++) {
+        waits[i + 1] = before.get(i).done;
+      }
+      command.done = CompletableFuture.allOf(waits).thenRunAsync(() -> {
+        for (Command read : before) {
+          if (read.searchResults != null) {
+            session.setSearchResults(read.searchResults);
+          }
+        }
+        command.response = execute(session, command.words);
+      }, executor);
+      barrier = command.done;
+      reads.clear();
+    }
+    command.done.whenComplete((v, error) -> {
+      if (error != null) {
+        error.printStackTrace();
+        command.response = "Failed to execute command\n";
+      }
+      drain();
+    });
+  }
+
+  /**
+   * Waits until the responses of all submitted commands are written
+   *
+   * @throws IOException if writing one of them failed
+   */
+  void finish() throws IOException, InterruptedException {
+    synchronized (pending) {
+      while (!pending.isEmpty() && writeError == null) {
+        pending.wait();
+      }
+      if (writeError != null) {
+        throw writeError;
+      }
+    }
+  }
+
+  private void read(Command command) {
+    Query fork;
+    synchronized (forks) {
+      fork = forks.poll();
+    }
+    if (fork == null) {
+      fork = session.fork();
+    }
+    fork.follow(session);
+    List<Itinerary> before = fork.searchResults();
+    try {
+      command.response = execute(fork, command.words);
+      if (fork.searchResults() != before) {
+        command.searchResults = fork.searchResults();
+      }
+    } finally {
+      synchronized (forks) {
+        forks.add(fork);
+      }
+    }
+  }
+
+  private static String execute(Query q, CommandTokenizer words) {
+    try {
+      return FlightService.execute(q, words);
+    } catch (NumberFormatException e) {
+      return "Failed to parse integer\n";
+    } catch (RuntimeException e) {
+      // a failed command must not keep the later ones from running
+      e.printStackTrace();
+      return "Failed to execute command\n";
+    }
+  }
+
+  /**
+   * Writes the responses that are next in order and ready, and flushes them
+   */
+  private void drain() {
+    synchronized (pending) {
+      boolean wrote = false;
+      Command head;
+      while ((head = pending.peek()) != null && head.response != null) {
+        pending.poll();
+        depth.release();
+        if (writeError != null) {
+          continue;
+        }
+        try {
+          out.write(head.tag);
+          out.write('\n');
+          out.write(head.response);
+          if (!head.response.endsWith("\n")) {
+            out.write('\n');
+          }
+          out.write('\n');
+          wrote = true;
+        } catch (IOException e) {
+          writeError = e;
+        }
+      }
+      if (wrote && writeError == null) {
+        try {
+          out.flush();
+        } catch (IOException e) {
+          writeError = e;
+        }
+      }
+      pending.notifyAll();
+    }
+  }
+}
@@ -3,35 +3,55 @@ package edu.uw.cs;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
-import java.security.*;
-import java.security.spec.*;
-import javax.crypto.*;
-import javax.crypto.spec.*;
-import javax.xml.bind.*;
 
 /**
  * Runs queries against a back-end database
  */
 public class Query {
-  // DB Connection
-  private Connection conn;
+  // DB Connections, shared with other sessions or owned by this one
+  private ConnectionPool pool;
+  private boolean ownsPool;
 
-  // Password hashing parameter constants
-  private static final int HASH_STRENGTH = 65536;
-  private static final int KEY_LENGTH = 128;
+  // connection borrowed for the transaction in progress, see bind()
+  private ConnectionPool.PooledConnection conn;
+
+  // runs database work off virtual threads, if the session runs on one
+  private DatabaseExecutor databaseExecutor;
+
+  // retries transactions that lost a race, shared by all sessions of the process
+  private TransactionRunner transactionRunner;
+
+  // Flights rows by fid, shared by all sessions of the process, null if disabled
+  private FlightCache flightCache;
+
+  // ranked itineraries of recent searches, shared by all sessions, null if disabled
+  private SearchCache searchCache;
+
+  // latencies of the transactions and statements of all sessions, null if disabled
+  private QueryStats stats;
+
+  // materialized best itineraries of every route and day, null if disabled
+  private BestItineraries bestItineraries;
+
+  // salted password hashes, derived off the session threads for all sessions
+  private PasswordHasher passwordHasher;
+
+  // in-memory effects of the unit of work in progress, see runAndRelease()
+  private final List<Action> commitActions = new ArrayList<Action>();
+  private final List<Action> rollbackActions = new ArrayList<Action>();
 
   // Canned queries
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
+  private static final String GET_FLIGHT = "SELECT * FROM Flights WHERE fid = ?";
+  private PreparedStatement getFlightStatement;
 
-  private static final String GET_USER = "SELECT * FROM Users WHERE username = ? AND password = ?";
+  private static final String GET_USER = "SELECT salt, password FROM Users WHERE username = ?";
   private PreparedStatement getUserStatement;
 
   private static final String USER_INFO = "SELECT * FROM Users WHERE username = ?";
   private PreparedStatement userInfoStatement;
 
   // Users statements
-  private static final String CREATE_USER = "INSERT INTO Users(username, password, balance) VALUES (?, ?, ?)";
+  private static final String CREATE_USER = "INSERT INTO Users(username, password, salt, balance) VALUES (?, ?, ?, ?)";
   private PreparedStatement createUserStatement;
 
   private static final String GET_BALANCES = "SELECT balance FROM Users WHERE username = ?";
@@ -44,12 +64,34 @@ public class Query {
   private static final String NEW_RESERVATIONS = "SELECT * FROM Reservations WHERE rid = ?";
   private PreparedStatement reservationsStatement;
 
-  private static final String RESERVATIONS_TABLE = "SELECT * FROM Reservations WHERE username = ? ORDER BY rid ASC";
+  // one row per leg after the second one, L.fid NULL if none
+  private static final String RESERVATIONS_TABLE = "SELECT R.rid, R.paid, R.canceled, R.fid1, R.fid2, L.fid "
+          + "FROM Reservations R LEFT OUTER JOIN ReservationLegs L ON L.rid = R.rid "
+          + "WHERE R.username = ? ORDER BY R.rid ASC, L.leg ASC";
   private PreparedStatement reservationsTableStatement;
 
+  // the flights of every reservation of a user, looked up by fid from the
+  // user's reservations
+  private static final String RESERVATION_FLIGHTS = "SELECT F.* FROM Reservations R "
+          + "JOIN Flights F ON F.fid IN (R.fid1, R.fid2) WHERE R.username = ? "
+          + "UNION SELECT F.* FROM Reservations R JOIN ReservationLegs L ON L.rid = R.rid "
+          + "JOIN Flights F ON F.fid = L.fid WHERE R.username = ?";
+  private PreparedStatement reservationFlightsStatement;
+
   private static final String RESERVATION = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
   private PreparedStatement insertReservationStatement;
 
+  // the legs of a reservation after its second one
+  private static final String RESERVATION_LEG = "INSERT INTO ReservationLegs VALUES (?, ?, ?)";
+  private PreparedStatement insertLegStatement;
+
+  // a reservation with one row per leg after its second one, fid NULL if none
+  private static final String RESERVATION_LEGS = "SELECT R.price, R.canceled, R.paid, R.username, "
+          + "R.fid1, R.fid2, L.fid "
+          + "FROM Reservations R LEFT OUTER JOIN ReservationLegs L ON L.rid = R.rid "
+          + "WHERE R.rid = ? ORDER BY L.leg ASC";
+  private PreparedStatement reservationLegsStatement;
+
   //Capacity statements
   private static final String INSERT_CAPACITY = "INSERT INTO Capacities "
           + "SELECT F.fid, F.capacity "
@@ -67,10 +109,6 @@ public class Query {
           +"WHERE fid = ?";
   private PreparedStatement updateCapacityStatement;
 
-  // Find day
-  private static final String FIND_DAY = "SELECT day_of_month FROM Flights WHERE fid = ?";
-  private PreparedStatement getDayStatement;
-
   // Update balance and paid
   private static final String UPDATE_BALANCE= "UPDATE Users SET balance = ? WHERE username = ?";
   private PreparedStatement updateBalanceStatement;
@@ -78,10 +116,6 @@ public class Query {
   private static final String UPDATE_PAID= "UPDATE Reservations SET paid = ? WHERE rid = ?";
   private PreparedStatement updatePaidStatement;
 
-  // Get flight
-  private static final String GET_FLIGHT = "SELECT * FROM Flights WHERE fid = ?";
-  private PreparedStatement getFlightStatement;
-
   // Update paid and canceled
   private static final String CANCEL = "UPDATE Reservations SET paid = ? , canceled = ? WHERE rid = ?";
   private PreparedStatement cancelStatement;
@@ -90,9 +124,77 @@ public class Query {
   private static final String ADD = "UPDATE Capacities SET capacity = ? WHERE fid = ?";
   private PreparedStatement addCapacityStatement;
 
+  // Book, pay and cancel as single transactions in one round trip each. Every
+  // batch ends with a row whose first column is 0 on success, otherwise the
+  // reason of the failure, and rolls back to its savepoint unless it succeeded,
+  // so it also works inside the caller's transaction. With @capacities = 0 the
+  // seats are left to the seat inventory.
+  private static final String BOOK_BATCH = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+          + "DECLARE @user VARCHAR(20) = ?, @fid1 INT = ?, @fid2 INT = ?, @rid INT = ?, @price INT = ?, "
+          + "@capacities BIT = ?; "
+          + "DECLARE @day INT, @status INT = 0; "
+          + "BEGIN TRANSACTION; SAVE TRANSACTION batch; "
+          + "SELECT @day = day_of_month FROM Flights WHERE fid = @fid1; "
+          + "IF EXISTS (SELECT * FROM Reservations WITH (UPDLOCK, HOLDLOCK) "
+          + "WHERE username = @user AND dayOfMonth = @day) "
+          + "SET @status = 1; "
+          + "ELSE BEGIN "
+          + "IF @capacities = 1 BEGIN "
+          + "INSERT INTO Capacities SELECT F.fid, F.capacity FROM Flights F "
+          + "WHERE F.fid IN (@fid1, @fid2) AND NOT EXISTS (SELECT * FROM Capacities C WHERE C.fid = F.fid); "
+          + "UPDATE Capacities SET capacity = capacity - 1 WHERE fid IN (@fid1, @fid2) AND capacity > 0; "
+          + "IF @@ROWCOUNT < CASE WHEN @fid2 = -1 THEN 1 ELSE 2 END SET @status = 2; "
+          + "END; "
+          + "IF @status = 0 "
+          + "INSERT INTO Reservations VALUES (@rid, @fid1, @fid2, 0, @price, @user, @day, 0); "
+          + "END; "
+          + "IF @status <> 0 ROLLBACK TRANSACTION batch; COMMIT TRANSACTION; "
+          + "SELECT @status;";
+  private PreparedStatement bookBatchStatement;
+
+  private static final String PAY_BATCH = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+          + "DECLARE @user VARCHAR(20) = ?, @rid INT = ?; "
+          + "DECLARE @price INT, @balance INT, @status INT = 0; "
+          + "BEGIN TRANSACTION; SAVE TRANSACTION batch; "
+          + "SELECT @price = price FROM Reservations WITH (UPDLOCK) "
+          + "WHERE rid = @rid AND username = @user AND paid = 0 AND canceled = 0; "
+          + "IF @price IS NULL SET @status = 1; "
+          + "ELSE BEGIN "
+          + "SELECT @balance = balance FROM Users WITH (UPDLOCK) WHERE username = @user; "
+          + "IF @balance < @price SET @status = 2; "
+          + "ELSE BEGIN "
+          + "UPDATE Reservations SET paid = 1 WHERE rid = @rid; "
+          + "UPDATE Users SET balance = balance - @price WHERE username = @user; "
+          + "SET @balance = @balance - @price; "
+          + "END; "
+          + "END; "
+          + "IF @status <> 0 ROLLBACK TRANSACTION batch; COMMIT TRANSACTION; "
+          + "SELECT @status, @balance, @price;";
+  private PreparedStatement payBatchStatement;
+
+  private static final String CANCEL_BATCH = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+          + "DECLARE @user VARCHAR(20) = ?, @rid INT = ?, @capacities BIT = ?; "
+          + "DECLARE @fid1 INT, @fid2 INT, @paid INT, @price INT, @status INT = 0; "
+          + "BEGIN TRANSACTION; SAVE TRANSACTION batch; "
+          + "SELECT @fid1 = fid1, @fid2 = fid2, @paid = paid, @price = price FROM Reservations WITH (UPDLOCK) "
+          + "WHERE rid = @rid AND username = @user AND canceled = 0; "
+          + "IF @fid1 IS NULL SET @status = 1; "
+          + "ELSE BEGIN "
+          + "UPDATE Reservations SET paid = 0, canceled = 1 WHERE rid = @rid; "
+          + "IF @paid = 1 UPDATE Users SET balance = balance + @price WHERE username = @user; "
+          + "IF @capacities = 1 UPDATE Capacities SET capacity = capacity + 1 "
+          + "WHERE fid IN (@fid1, @fid2) OR fid IN (SELECT fid FROM ReservationLegs WHERE rid = @rid); "
+          + "END; "
+          + "IF @status <> 0 ROLLBACK TRANSACTION batch; COMMIT TRANSACTION; "
+          + "SELECT @status, @fid1, @fid2, L.fid FROM (SELECT 1 AS one) S "
+          + "LEFT OUTER JOIN ReservationLegs L ON L.rid = @rid ORDER BY L.leg;";
+  private PreparedStatement cancelBatchStatement;
+
   // local variables
   private String login;
-  private int rid = 1;
+
+  // reservation ids, shared by all sessions of the process
+  private ReservationIds reservationIds;
 
   // Search implementation
   private static final String DIRECT = "SELECT TOP (?) * FROM Flights "
@@ -106,9 +208,97 @@ public class Query {
           + "AND F.canceled <> 1 AND F1.canceled <> 1 "
           + "ORDER BY (F.actual_time + F1.actual_time), F.fid ASC;";
   private PreparedStatement indirectStatement;
+
+  // Direct and indirect itineraries in one round trip: all direct flights up
+  // to the limit, then the fastest indirect ones filling the remaining slots.
+  // Columns: legs, 9 columns per flight (see Flight.fromColumns), total time.
+  private static final String MERGED = "WITH Direct AS ("
+          + "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+          + "actual_time, capacity, price FROM Flights "
+          + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled <> 1 "
+          + "ORDER BY actual_time ASC, fid ASC), "
+          + "Indirect AS ("
+          + "SELECT TOP (?) F.fid AS fid1, F.day_of_month AS day1, F.carrier_id AS carrier1, "
+          + "F.flight_num AS num1, F.origin_city AS origin1, F.dest_city AS dest1, F.actual_time AS time1, "
+          + "F.capacity AS capacity1, F.price AS price1, "
+          + "F1.fid AS fid2, F1.day_of_month AS day2, F1.carrier_id AS carrier2, F1.flight_num AS num2, "
+          + "F1.origin_city AS origin2, F1.dest_city AS dest2, F1.actual_time AS time2, "
+          + "F1.capacity AS capacity2, F1.price AS price2, "
+          + "ROW_NUMBER() OVER (ORDER BY F.actual_time + F1.actual_time, F.fid, F1.fid) AS rn "
+          + "FROM Flights F, Flights F1 "
+          + "WHERE F.origin_city = ? AND F.dest_city = F1.origin_city AND F1.dest_city = ? "
+          + "AND F.day_of_month = ? AND F.day_of_month = F1.day_of_month "
+          + "AND F.canceled <> 1 AND F1.canceled <> 1 "
+          + "ORDER BY rn) "
+          + "SELECT 1 AS legs, fid AS fid1, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+          + "actual_time, capacity, price, NULL AS fid2, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, "
+          + "actual_time AS total FROM Direct "
+          + "UNION ALL "
+          + "SELECT 2, fid1, day1, carrier1, num1, origin1, dest1, time1, capacity1, price1, "
+          + "fid2, day2, carrier2, num2, origin2, dest2, time2, capacity2, price2, time1 + time2 "
+          + "FROM Indirect WHERE rn <= ? - (SELECT COUNT(*) FROM Direct) "
+          + "ORDER BY total ASC, legs ASC, fid1 ASC, fid2 ASC";
+  private PreparedStatement mergedStatement;
+
+  // The materialized itineraries of a route and day, direct ones first, see
+  // BestItineraries. Columns: legs, 9 columns per flight (see
+  // Flight.fromColumns).
+  private static final String BEST = "SELECT B.legs, "
+          + "F.fid, F.day_of_month, F.carrier_id, F.flight_num, F.origin_city, F.dest_city, "
+          + "F.actual_time, F.capacity, F.price, "
+          + "F1.fid, F1.day_of_month, F1.carrier_id, F1.flight_num, F1.origin_city, F1.dest_city, "
+          + "F1.actual_time, F1.capacity, F1.price "
+          + "FROM BestItineraries B JOIN Flights F ON F.fid = B.fid1 LEFT OUTER JOIN Flights F1 ON F1.fid = B.fid2 "
+          + "WHERE B.origin_city = ? AND B.dest_city = ? AND B.day_of_month = ? AND B.legs <= ? AND B.slot < ? "
+          + "ORDER BY B.legs, B.slot";
+  private PreparedStatement bestStatement;
+  // The legs of the itineraries of a route and day, for the skyline: the
+  // flights leaving the origin and those reaching the destination. Columns:
+  // see Flight.fromColumns.
+  private static final String ROUTE_LEGS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, "
+          + "dest_city, actual_time, capacity, price FROM Flights "
+          + "WHERE day_of_month = ? AND (origin_city = ? OR dest_city = ?) AND canceled <> 1 "
+          + "ORDER BY actual_time ASC, fid ASC";
+  private PreparedStatement routeLegsStatement;
+
   // itinerary
   private List<Itinerary> itinerary = new ArrayList<Itinerary>();
 
+  // answer non-direct searches with the single MERGED statement
+  private boolean mergedSearch;
+
+  // run book, pay and cancel as the single round trip *_BATCH statements
+  private boolean atomicTransactions;
+
+  // optional in-memory seat counters shared between sessions, replacing the
+  // Capacities reads and writes of book and cancel
+  private SeatInventory seatInventory;
+  private boolean ownsSeatInventory;
+
+  // optional index or snapshot answering searches, may be shared between sessions
+  private FlightSource flightIndex;
+  private OneHopSearch oneHopSearch;
+  // most stops of a non-direct search answered by the index
+  private int maxStops = 1;
+  // finds itineraries with more than one stop, null if maxStops is 1
+  private MultiHopSearch multiHopSearch;
+
+  /**
+   * Creates a session that opens its own connection with
+   * {@link #openConnection()}
+   */
+  public Query() {
+  }
+
+  /**
+   * Creates a session borrowing its connections from a pool shared with other
+   * sessions. The session must not be used by two threads at once.
+   */
+  public Query(ConnectionPool pool) {
+    this.pool = pool;
+    configure(pool.getConfig());
+  }
+
   /**
    * Establishes a new application-to-database connection. Uses the
    * dbconn.properties configuration settings
@@ -118,39 +308,200 @@ public class Query {
    */
   public void openConnection() throws IOException, SQLException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
-    String serverURL = configProps.getProperty("hw1.server_url");
-    String dbName = configProps.getProperty("hw1.database_name");
-    String adminName = configProps.getProperty("hw1.username");
-    String password = configProps.getProperty("hw1.password");
-    String connectionUrl = String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
-        dbName, adminName, password);
-    conn = DriverManager.getConnection(connectionUrl);
+    Properties configProps = loadConfig();
+    pool = new ConnectionPool(configProps, 1);
+    ownsPool = true;
+    configure(configProps);
 
-    // By default, automatically commit after each statement
-    conn.setAutoCommit(true);
+    // fail now rather than on the first command if the database is unreachable
+    pool.release(pool.acquire());
+  }
 
-    // By default, set the transaction isolation level to serializable
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+  private void configure(Properties configProps) {
+    reservationIds = ReservationIds.shared(pool);
+    transactionRunner = TransactionRunner.shared(configProps);
+    flightCache = FlightCache.shared(configProps);
+    searchCache = SearchCache.shared(configProps);
+    stats = QueryStats.shared(configProps);
+    if (stats != null && flightCache != null) {
+      stats.cache("flights", flightCache);
+    }
+    if (stats != null && searchCache != null) {
+      stats.cache("searches", searchCache);
+    }
+    passwordHasher = PasswordHasher.shared(configProps);
+    bestItineraries = BestItineraries.shared(configProps);
+    mergedSearch = Boolean.parseBoolean(configProps.getProperty("flights.merged_search", "false"));
+    maxStops = Integer.parseInt(configProps.getProperty("flights.max_stops", "1"));
+    atomicTransactions = Boolean.parseBoolean(configProps.getProperty("flights.atomic_transactions", "false"))
+        && pool.getBackend().supportsTransactSql();
+  }
+
+  /**
+   * Reads the dbconn.properties configuration settings
+   *
+   * @throws IOException
+   */
+  public static Properties loadConfig() throws IOException {
+    Properties configProps = new Properties();
+    FileInputStream in = new FileInputStream("dbconn.properties");
+    try {
+      configProps.load(in);
+    } finally {
+      in.close();
+    }
+    return configProps;
   }
 
   /**
    * Closes the application-to-database connection
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    if (ownsSeatInventory) {
+      seatInventory.close();
+    }
+    if (ownsPool) {
+      pool.close();
+    }
+  }
+
+
+  /**
+   * Loads the Flights table into an in-memory index and answers searches from
+   * it from now on. The returned index can be shared with other sessions.
+   */
+  public FlightSource loadFlightIndex() throws SQLException {
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      setFlightIndex(FlightIndex.load(c.connection()));
+    } finally {
+      pool.release(c);
+    }
+    if (searchCache != null) {
+      searchCache.invalidate();
+    }
+    return flightIndex;
+  }
+
+  /**
+   * Maps the Flights snapshot file at {@code path} and answers searches from it
+   * from now on, building the file from the Flights table first if it does not
+   * exist. The returned snapshot can be shared with other sessions.
+   */
+  public FlightSource openFlightSnapshot(String path) throws SQLException, IOException {
+    File file = new File(path);
+    if (!file.exists()) {
+      ConnectionPool.PooledConnection c = pool.acquire();
+      try {
+        FlightSnapshot.build(c.connection(), file);
+      } finally {
+        pool.release(c);
+      }
+    }
+    setFlightIndex(FlightSnapshot.open(file));
+    if (searchCache != null) {
+      searchCache.invalidate();
+    }
+    return flightIndex;
+  }
+
+  /**
+   * Answers searches for at most {@code flights.best_itineraries} itineraries
+   * from the materialized best itineraries from now on, as far as they are
+   * built. Does nothing if {@code flights.best_itineraries} is 0.
+   */
+  public void openBestItineraries() throws SQLException {
+    if (bestItineraries != null) {
+      bestItineraries.open(pool);
+      if (searchCache != null) {
+        searchCache.invalidate();
+      }
+    }
+  }
+
+  /**
+   * Answers searches from the given index or snapshot, or from the database if
+   * null
+   */
+  public void setFlightIndex(FlightSource index) {
+    flightIndex = index;
+    oneHopSearch = index == null ? null : new OneHopSearch(index);
+    multiHopSearch = index == null || maxStops <= 1 ? null : new MultiHopSearch(index, maxStops);
+  }
+
+  /**
+   * Keeps the remaining seats of the flights in memory from now on and writes
+   * them back to Capacities every {@code flights.seat_flush_ms} milliseconds.
+   * The returned inventory can be shared with other sessions of this process.
+   */
+  public SeatInventory startSeatInventory() {
+    long flushMillis = Long.parseLong(pool.getConfig().getProperty("flights.seat_flush_ms", "1000"));
+    setSeatInventory(new SeatInventory(pool, flushMillis));
+    ownsSeatInventory = true;
+    return seatInventory;
+  }
+
+  /**
+   * Books seats through the given inventory, or directly in Capacities if null
+   */
+  public void setSeatInventory(SeatInventory inventory) {
+    seatInventory = inventory;
+    ownsSeatInventory = false;
+  }
+
+  /**
+   * Runs the database work of this session on the given executor instead of
+   * the calling thread. Used by sessions running on virtual threads.
+   */
+  void setDatabaseExecutor(DatabaseExecutor executor) {
+    databaseExecutor = executor;
   }
 
+  /**
+   * A new session for running read-only commands next to this one, sharing
+   * its pool, flight index or snapshot, seat inventory and database executor.
+   * Call {@link #follow} before each command.
+   */
+  Query fork() {
+    Query fork = new Query(pool);
+    fork.setFlightIndex(flightIndex);
+    fork.setSeatInventory(seatInventory);
+    fork.setDatabaseExecutor(databaseExecutor);
+    return fork;
+  }
+
+  /**
+   * Takes over the login and the search results of another session
+   */
+  void follow(Query session) {
+    login = session.login;
+    itinerary = session.itinerary;
+  }
 
-  // Itinerary class
-  class Itinerary
-  {
-    public int fid1;
-    public int fid2;
-    public int capacity1;
-    public int capacity2;
-    public int cost;
+  /**
+   * The itineraries of the most recent search. A search replaces the list
+   * instead of changing it, so a changed list means a search ran.
+   */
+  List<Itinerary> searchResults() {
+    return itinerary;
+  }
+
+  /**
+   * Makes the given itineraries those of the most recent search, for book
+   */
+  void setSearchResults(List<Itinerary> results) {
+    itinerary = results;
+  }
+
+  /**
+   * Prints the latencies and errors of every transaction type and canned
+   * statement run by the sessions of this process, see {@link QueryStats}
+   */
+  public String stats() {
+    if (stats == null) {
+      return "Statistics are disabled\n";
+    }
+    return stats.report(transactionRunner);
   }
 
   /**
@@ -160,10 +511,21 @@ public class Query {
    */
   public void clearTables() {
     try {
-      Statement clear = conn.createStatement();
-      clear.executeUpdate("DELETE FROM Users");
-      clear.executeUpdate("DELETE FROM Capacities");
-      clear.executeUpdate("DELETE FROM Reservations");
+      ConnectionPool.PooledConnection c = pool.acquire();
+      try {
+        Statement clear = c.connection().createStatement();
+        clear.executeUpdate("DELETE FROM Users");
+        clear.executeUpdate("DELETE FROM Capacities");
+        clear.executeUpdate("DELETE FROM Reservations");
+        clear.executeUpdate("DELETE FROM ReservationLegs");
+        clear.close();
+        reservationIds.reset();
+        if (seatInventory != null) {
+          seatInventory.clear();
+        }
+      } finally {
+        pool.release(c);
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -173,26 +535,195 @@ public class Query {
    * prepare all the SQL statements in this method.
    */
   public void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    getUserStatement = conn.prepareStatement(GET_USER);
-    createUserStatement = conn.prepareStatement(CREATE_USER);
-    directStatement = conn.prepareStatement(DIRECT);
-    indirectStatement = conn.prepareStatement(INDIRECT);
-    getReservationsStatement = conn.prepareStatement(GET_RESERVATIONS);
-    capacityStatement = conn.prepareStatement(INSERT_CAPACITY);
-    getCapacityStatement = conn.prepareStatement(GET_CAPACITY);
-    updateCapacityStatement = conn.prepareStatement(UPDATE_CAPACITY);
-    getDayStatement = conn.prepareStatement(FIND_DAY);
-    insertReservationStatement = conn.prepareStatement(RESERVATION);
-    reservationsStatement = conn.prepareStatement(NEW_RESERVATIONS);
-    getBalancesStatement = conn.prepareStatement(GET_BALANCES);
-    updateBalanceStatement = conn.prepareStatement(UPDATE_BALANCE);
-    updatePaidStatement = conn.prepareStatement(UPDATE_PAID);
-    reservationsTableStatement = conn.prepareStatement(RESERVATIONS_TABLE);
-    getFlightStatement = conn.prepareStatement(GET_FLIGHT);
-    cancelStatement = conn.prepareStatement(CANCEL);
-    addCapacityStatement = conn.prepareStatement(ADD);
-    userInfoStatement = conn.prepareStatement(USER_INFO);
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      prepareStatements(c);
+    } finally {
+      pool.release(c);
+    }
+  }
+
+  /*
+   * Binds the statement fields to the statements cached on the given
+   * connection, preparing the ones it has not seen yet.
+   */
+  private void prepareStatements(ConnectionPool.PooledConnection c) throws SQLException {
+    getFlightStatement = c.prepare("GET_FLIGHT", GET_FLIGHT);
+    getUserStatement = c.prepare("GET_USER", GET_USER);
+    createUserStatement = c.prepare("CREATE_USER", CREATE_USER);
+    directStatement = c.prepare("DIRECT", DIRECT);
+    indirectStatement = c.prepare("INDIRECT", INDIRECT);
+    mergedStatement = c.prepare("MERGED", MERGED);
+    getReservationsStatement = c.prepare("GET_RESERVATIONS", GET_RESERVATIONS);
+    capacityStatement = c.prepare("INSERT_CAPACITY", INSERT_CAPACITY);
+    getCapacityStatement = c.prepare("GET_CAPACITY", GET_CAPACITY);
+    updateCapacityStatement = c.prepare("UPDATE_CAPACITY", UPDATE_CAPACITY);
+    insertReservationStatement = c.prepare("RESERVATION", RESERVATION);
+    insertLegStatement = c.prepare("RESERVATION_LEG", RESERVATION_LEG);
+    reservationLegsStatement = c.prepare("RESERVATION_LEGS", RESERVATION_LEGS);
+    reservationsStatement = c.prepare("NEW_RESERVATIONS", NEW_RESERVATIONS);
+    getBalancesStatement = c.prepare("GET_BALANCES", GET_BALANCES);
+    updateBalanceStatement = c.prepare("UPDATE_BALANCE", UPDATE_BALANCE);
+    updatePaidStatement = c.prepare("UPDATE_PAID", UPDATE_PAID);
+    reservationsTableStatement = c.prepare("RESERVATIONS_TABLE", RESERVATIONS_TABLE);
+    reservationFlightsStatement = c.prepare("RESERVATION_FLIGHTS", RESERVATION_FLIGHTS);
+    cancelStatement = c.prepare("CANCEL", CANCEL);
+    addCapacityStatement = c.prepare("ADD", ADD);
+    if (atomicTransactions) {
+      // T-SQL batches, see StorageBackend.supportsTransactSql()
+      bookBatchStatement = c.prepare("BOOK_BATCH", BOOK_BATCH);
+      payBatchStatement = c.prepare("PAY_BATCH", PAY_BATCH);
+      cancelBatchStatement = c.prepare("CANCEL_BATCH", CANCEL_BATCH);
+    }
+    userInfoStatement = c.prepare("USER_INFO", USER_INFO);
+    routeLegsStatement = c.prepare("ROUTE_LEGS", ROUTE_LEGS);
+    if (bestItineraries != null) {
+      bestStatement = c.prepare("BEST", BEST);
+    }
+  }
+
+  /**
+   * A unit of work of a transaction_* method, see {@link #run}
+   */
+  private interface Transaction {
+    String run() throws SQLException;
+  }
+
+  /**
+   * An in-memory effect of a unit of work, see {@link #onCommit}
+   */
+  private interface Action {
+    void run() throws SQLException;
+  }
+
+  /**
+   * Runs the action once the current unit of work has committed
+   */
+  private void onCommit(Action action) {
+    commitActions.add(action);
+  }
+
+  /**
+   * Runs the action if the current unit of work fails or calls {@link #undo()}
+   */
+  private void onRollback(Action action) {
+    rollbackActions.add(action);
+  }
+
+  /**
+   * Undoes the in-memory effects of a unit of work that gives up without an
+   * error, such as a booking refused by the database
+   */
+  private void undo() {
+    runActions(rollbackActions);
+  }
+
+  private static void runActions(List<Action> actions) {
+    for (int i = actions.size() - 1; i >= 0; i--) {
+      try {
+        actions.get(i).run();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    actions.clear();
+  }
+
+  /**
+   * Runs a unit of work as one database transaction, retried by the
+   * transaction runner if it loses a race with another session. Returns
+   * {@code failure} if the work failed with a database error.
+   *
+   * @param type name the attempts of the work are counted under
+   */
+  private String run(String type, String failure, Transaction work) {
+    return run(type, failure, true, work);
+  }
+
+  /**
+   * Same as {@link #run(String, String, Transaction)}, {@code database} tells
+   * whether the work may use the database or is answered from memory only.
+   */
+  private String run(String type, String failure, boolean database, final Transaction work) {
+    long start = System.nanoTime();
+    boolean error = false;
+    try {
+      if (database && databaseExecutor != null) {
+        return databaseExecutor.call(() -> runWithRetries(type, work));
+      }
+      return runWithRetries(type, work);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      error = true;
+      return failure;
+    } finally {
+      if (stats != null) {
+        stats.transaction(type).record(System.nanoTime() - start, error);
+      }
+    }
+  }
+
+  private String runWithRetries(String type, final Transaction work) throws SQLException {
+    if (transactionRunner == null) {
+      return runAndRelease(work);
+    }
+    return transactionRunner.run(type, () -> runAndRelease(work));
+  }
+
+  /**
+   * Runs one attempt of the work, commits it if it borrowed a connection and
+   * gives the connection back. A failed attempt is rolled back.
+   */
+  private String runAndRelease(Transaction work) throws SQLException {
+    boolean committed = false;
+    try {
+      String result = work.run();
+      if (conn != null) {
+        conn.connection().commit();
+      }
+      committed = true;
+      runActions(commitActions);
+      return result;
+    } finally {
+      if (!committed) {
+        runActions(rollbackActions);
+      }
+      commitActions.clear();
+      rollbackActions.clear();
+      if (conn != null) {
+        Connection c = conn.connection();
+        try {
+          if (!committed) {
+            c.rollback();
+          }
+          c.setAutoCommit(true);
+        } catch (SQLException e) {
+          // unusable now, closing it makes the pool drop it
+          c.close();
+        }
+        pool.release(conn);
+        conn = null;
+      }
+    }
+  }
+
+  /**
+   * Borrows a connection for the rest of the current unit of work, starts its
+   * transaction and binds the statement fields to it. Work answered from
+   * memory never calls it.
+   */
+  private void bind() throws SQLException {
+    if (conn == null) {
+      conn = pool.acquire();
+      try {
+        conn.connection().setAutoCommit(false);
+        prepareStatements(conn);
+      } catch (SQLException e) {
+        pool.release(conn);
+        conn = null;
+        throw e;
+      }
+    }
   }
 
   /**
@@ -205,26 +736,48 @@ public class Query {
    *         in\n" For all other errors, return "Login failed\n". Otherwise,
    *         return "Logged in as [username]\n".
    */
-  public String transaction_login(String username, String password) {
+  public String transaction_login(final String username, final String password) {
     if (this.login != null) {
       return "User already logged in\n";
     }
+    // the salt and hash are read first, so no connection is held while hashing
+    final byte[][] stored = new byte[2][];
+    String failed = run("login", "Login failed\n", () -> readCredentials(username, stored));
+    if (failed != null) {
+      return failed;
+    }
     try {
-      getUserStatement.clearParameters();
-      getUserStatement.setString(1, username);
-      getUserStatement.setString(2, password);
-      ResultSet result = getUserStatement.executeQuery();
-      if (result.next()) {
-        this.login = username;
-        result.close();
-        return "Logged in as " + this.login + "\n";
+      if (!passwordHasher.verify(username, password, stored[0], stored[1])) {
+        return "Login failed\n";
       }
-      result.close();
-    }
-    catch (Exception e) {
+    } catch (SQLException e) {
       e.printStackTrace();
+      return "Login failed\n";
+    }
+    this.login = username;
+    return "Logged in as " + this.login + "\n";
+  }
+
+  /**
+   * Reads the salt and password hash of a user into {@code stored}
+   *
+   * @return null if the user exists, the failure otherwise
+   */
+  private String readCredentials(String username, byte[][] stored) throws SQLException {
+    bind();
+    getUserStatement.clearParameters();
+    getUserStatement.setString(1, username);
+    ResultSet result = getUserStatement.executeQuery();
+    try {
+      if (!result.next()) {
+        return "Login failed\n";
+      }
+      stored[0] = result.getBytes(1);
+      stored[1] = result.getBytes(2);
+      return null;
+    } finally {
+      result.close();
     }
-    return "Login failed\n";
   }
 
   /**
@@ -238,28 +791,64 @@ public class Query {
    * @return either "Created user {@code username}\n" or "Failed to create user\n"
    *         if failed.
    */
-  public String transaction_createCustomer(String username, String password, int initAmount) {
-    if (initAmount >= 0) {
+  public String transaction_createCustomer(final String username, final String password, final int initAmount) {
+    if (initAmount < 0) {
+      return "Failed to create user\n";
+    }
+    // a taken username fails before the costly hashing, the primary key still
+    // rejects a concurrent creation of the same user
+    String failed = run("create", "Failed to create user\n", () -> checkUsername(username));
+    if (failed != null) {
+      return failed;
+    }
+    final byte[] salt = passwordHasher.salt();
+    final byte[] hash;
+    try {
+      hash = passwordHasher.hash(password, salt);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Failed to create user\n";
+    }
+    String result = run("create", "Failed to create user\n", () -> createCustomer(username, salt, hash, initAmount));
+    if (result.startsWith("Created")) {
       try {
-        userInfoStatement.clearParameters();
-        userInfoStatement.setString(1, username);
-        ResultSet result = userInfoStatement.executeQuery();
-        if (result.next()) {
-          result.close();
-          return "Failed to create user\n";
-        }
-        createUserStatement.clearParameters();
-        createUserStatement.setString(1, username);
-        createUserStatement.setString(2, password);
-        createUserStatement.setInt(3, initAmount);
-        createUserStatement.execute();
-        return "Created user " + username + "\n";
+        passwordHasher.remember(username, password, salt, hash);
+      } catch (SQLException e) {
+        e.printStackTrace();
       }
-     catch (Exception e) {
-       e.printStackTrace();
-     }
     }
-    return "Failed to create user\n";
+    return result;
+  }
+
+  /**
+   * Checks that no user has the username yet
+   *
+   * @return null if the username is free, the failure otherwise
+   */
+  private String checkUsername(String username) throws SQLException {
+    bind();
+    userInfoStatement.clearParameters();
+    userInfoStatement.setString(1, username);
+    ResultSet result = userInfoStatement.executeQuery();
+    try {
+      return result.next() ? "Failed to create user\n" : null;
+    } finally {
+      result.close();
+    }
+  }
+
+  private String createCustomer(String username, byte[] salt, byte[] hash, int initAmount) throws SQLException {
+    String failed = checkUsername(username);
+    if (failed != null) {
+      return failed;
+    }
+    createUserStatement.clearParameters();
+    createUserStatement.setString(1, username);
+    createUserStatement.setBytes(2, hash);
+    createUserStatement.setBytes(3, salt);
+    createUserStatement.setInt(4, initAmount);
+    createUserStatement.execute();
+    return "Created user " + username + "\n";
   }
 
   /**
@@ -295,187 +884,263 @@ public class Query {
    *
    * @see Flight#toString()
    */
-  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
-      int numberOfItineraries) {
-    // WARNING the below code is unsafe and only handles searches for direct flights
-    // You can use the below code as a starting reference point or you can get rid
-    // of it all and replace it with your own implementation.
-    //
-    StringBuffer sb = new StringBuffer();
-    try {
-      if (directFlight) {
-        // direct itineraries
-        directStatement.clearParameters();
-        directStatement.setInt(1, numberOfItineraries);
-        directStatement.setString(2, originCity);
-        directStatement.setString(3, destinationCity);
-        directStatement.setInt(4, dayOfMonth);
-        ResultSet directResult = directStatement.executeQuery();
-        int num = 0;
-        while (directResult.next()) {
-          int result_fid = directResult.getInt("fid");
-          int result_dayOfMonth = directResult.getInt("day_of_month");
-          String result_carrierId = directResult.getString("carrier_id");
-          String result_flightNum = directResult.getString("flight_num");
-          String result_originCity = directResult.getString("origin_city");
-          String result_destCity = directResult.getString("dest_city");
-          int result_time = directResult.getInt("actual_time");
-          int result_capacity = directResult.getInt("capacity");
-          int result_price = directResult.getInt("price");
-          Itinerary it_list = new Itinerary();
-          it_list.fid1 = result_fid;
-          it_list.fid2 = -1;
-          it_list.capacity1 = result_capacity;
-          it_list.capacity2 = -1;
-          it_list.cost = result_price;
-          itinerary.add(it_list);
-          sb.append("Itinerary " + num + ": 1 flight(s), " + result_time + " minutes\n");
-          sb.append("ID: " + result_fid + " Day: " + result_dayOfMonth + " Carrier: " + result_carrierId
-                  + " Number: " + result_flightNum + " Origin: " + result_originCity
-                  + " Dest: " + result_destCity + " Duration: " + result_time
-                  + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
-          num += 1;
+  public String transaction_search(final String originCity, final String destinationCity, final boolean directFlight,
+      final int dayOfMonth, final int numberOfItineraries) {
+    // itinerary ids always refer to the most recent search
+    itinerary = new ArrayList<Itinerary>();
+    if (searchCache != null) {
+      long start = System.nanoTime();
+      List<Itinerary> cached = searchCache.get(originCity, destinationCity, directFlight, dayOfMonth,
+          numberOfItineraries);
+      if (cached != null) {
+        String result = render(cached);
+        if (stats != null) {
+          stats.transaction("search").record(System.nanoTime() - start, false);
         }
-        directResult.close();
+        return result;
       }
-      //output indirectflight
-      // still need to work
-      else {
-        directStatement.clearParameters();
-        directStatement.setInt(1, numberOfItineraries);
-        directStatement.setString(2, originCity);
-        directStatement.setString(3, destinationCity);
-        directStatement.setInt(4, dayOfMonth);
-        ResultSet directResult = directStatement.executeQuery();
-        int direct = 0;
-        while (directResult.next()) {
-          direct += 1;
-        }
-        int remain = numberOfItineraries - direct;
-        directStatement.clearParameters();
-        directStatement.setInt(1, direct);
-        directStatement.setString(2, originCity);
-        directStatement.setString(3, destinationCity);
-        directStatement.setInt(4, dayOfMonth);
-        ResultSet directResult2 = directStatement.executeQuery();
-        // indirect flight
-        indirectStatement.clearParameters();
-        indirectStatement.setInt(1, remain);
-        indirectStatement.setString(2, originCity);
-        indirectStatement.setString(3, destinationCity);
-        indirectStatement.setInt(4, dayOfMonth);
-        ResultSet indirectResult = indirectStatement.executeQuery();
-        int result1 = 1;
-        int result2 = 1;
-        if (!directResult2.next()) {
-          result1 = 0;
-        }
-        if (!indirectResult.next()) {
-          result2 = 0;
-        }
-        int count = 0;
-        while (numberOfItineraries > 0) {
-          // time comparison
-          int direct_time = 0;
-          int indirect_time = 0;
-          if (result1 == 1 && result2 == 1) {
-            direct_time = directResult2.getInt("actual_time");
-            indirect_time = indirectResult.getInt(15) + indirectResult.getInt(33);
-          }
-          else if (result1 == 0 && result2 == 1) {
-            direct_time = 10000;
-            indirect_time = indirectResult.getInt(15) + indirectResult.getInt(33);
-          }
-          else if (result1 == 1 && result2 == 0) {
-            direct_time = directResult2.getInt("actual_time");
-            indirect_time = 100000;
-          }
-          if (direct_time <= indirect_time) {
-            int result_fid = directResult2.getInt("fid");
-            int result_dayOfMonth = directResult2.getInt("day_of_month");
-            String result_carrierId = directResult2.getString("carrier_id");
-            String result_flightNum = directResult2.getString("flight_num");
-            String result_originCity = directResult2.getString("origin_city");
-            String result_destCity = directResult2.getString("dest_city");
-            int result_time = directResult2.getInt("actual_time");
-            int result_capacity = directResult2.getInt("capacity");
-            int result_price = directResult2.getInt("price");
-            Itinerary it_list = new Itinerary();
-            it_list.fid1 = result_fid;
-            it_list.fid2 = -1;
-            it_list.capacity1 = result_capacity;
-            it_list.capacity2 = -1;
-            it_list.cost = result_price;
-            itinerary.add(it_list);
-            sb.append("Itinerary " + count + ": 1 flight(s), " + result_time + " minutes\n");
-            sb.append("ID: " + result_fid + " Day: " + result_dayOfMonth + " Carrier: " + result_carrierId
-                    + " Number: " + result_flightNum + " Origin: " + result_originCity
-                    + " Dest: " + result_destCity + " Duration: " + result_time
-                    + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
-            if (!directResult2.next()) {
-              result1 = 0;
-            }
-            numberOfItineraries -= 1;
-            count += 1;
-          }
-          else {
-            int result_dayOfMonth = indirectResult.getInt("day_of_month");
-            // first flight
-            int fid1 = indirectResult.getInt(1);
-            String carrierId1 = indirectResult.getString(5);
-            String flightNum1 = indirectResult.getString(6);
-            String originCity1 = indirectResult.getString(7);
-            String destCity1 = indirectResult.getString(9);
-            int time1 = indirectResult.getInt(15);
-            int capacity1 = indirectResult.getInt(17);
-            int price1 = indirectResult.getInt(18);
-
-            // second flight
-            int fid2 = indirectResult.getInt(19);
-            String carrierId2 = indirectResult.getString(23);
-            String flightNum2 = indirectResult.getString(24);
-            String originCity2 = indirectResult.getString(25);
-            String destCity2 = indirectResult.getString(27);
-            int time2 = indirectResult.getInt(33);
-            int capacity2 = indirectResult.getInt(35);
-            int price2 = indirectResult.getInt(36);
-            // append values
-            Itinerary it_list = new Itinerary();
-            it_list.fid1 = fid1;
-            it_list.fid2 = fid2;
-            it_list.capacity1 = capacity1;
-            it_list.capacity2 = capacity2;
-            it_list.cost = price1 + price2;
-            itinerary.add(it_list);
-            // append result
-            sb.append("Itinerary " + count + ": 2 flight(s), " + (time1 + time2) + " minutes\n");
-            sb.append("ID: " + fid1 + " Day: " + result_dayOfMonth + " Carrier: " + carrierId1
-                    + " Number: " + flightNum1 + " Origin: " + originCity1 + " Dest: "
-                    + destCity1 + " Duration: " + time1
-                    + " Capacity: " + capacity1 + " Price: " + price1 + "\n");
-            sb.append("ID: " + fid2 + " Day: " + result_dayOfMonth + " Carrier: " + carrierId2
-                    + " Number: " + flightNum2 + " Origin: " + originCity2 + " Dest: "
-                    + destCity2 + " Duration: " + time2
-                    + " Capacity: " + capacity2 + " Price: " + price2 + "\n");
-            if (!indirectResult.next()) {
-              result2 = 0;
-            }
-            numberOfItineraries -= 1;
-            count += 1;
-          }
+    }
+    return run("search", "Failed to search\n", flightIndex == null,
+        () -> search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries));
+  }
+
+  private String search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries) throws SQLException {
+    // every direct itinerary (up to the limit) is returned, indirect
+    // itineraries only fill the remaining slots
+    long generation = searchCache == null ? 0 : searchCache.generation();
+    List<Itinerary> results;
+    if (flightIndex == null && bestItineraries != null && bestItineraries.covers(numberOfItineraries)) {
+      results = searchBest(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    } else if (!directFlight && mergedSearch && flightIndex == null) {
+      results = searchMerged(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+    } else {
+      results = searchDirect(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+      int remain = numberOfItineraries - results.size();
+      if (!directFlight && remain > 0) {
+        results.addAll(searchIndirect(originCity, destinationCity, dayOfMonth, remain));
+        Collections.sort(results, Itinerary.BY_TIME);
+      }
+    }
+    if (searchCache != null) {
+      searchCache.put(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, results,
+          generation);
+    }
+    if (flightCache != null && flightIndex == null) {
+      // the flights are about to be booked, keep them at hand
+      for (Itinerary it : results) {
+        for (Flight f : it.flights) {
+          flightCache.put(f);
         }
-        directResult2.close();
-        indirectResult.close();
       }
-      if (itinerary.size() == 0) {
-        return "No flights match your selection\n";
+    }
+    return render(results);
+  }
+
+  /**
+   * Implements the skyline search mode: the direct and one-hop itineraries
+   * that no other itinerary beats on both total flight time and total price,
+   * so the fastest, the cheapest and every trade-off in between.
+   *
+   * @param directFlight if true, then only search for direct flights
+   *
+   * @return If no itineraries were found, return "No flights match your
+   *         selection\n". If an error occurs, then return "Failed to search\n".
+   *
+   *         Otherwise, the itineraries in the format of
+   *         {@link #transaction_search}, sorted by total flight time, and so
+   *         from the most to the least expensive. They can be booked like the
+   *         results of a search.
+   */
+  public String transaction_skyline(final String originCity, final String destinationCity,
+      final boolean directFlight, final int dayOfMonth) {
+    // itinerary ids always refer to the most recent search
+    itinerary = new ArrayList<Itinerary>();
+    return run("skyline", "Failed to search\n", flightIndex == null,
+        () -> skyline(originCity, destinationCity, directFlight, dayOfMonth));
+  }
+
+  private String skyline(String originCity, String destinationCity, boolean directFlight, int dayOfMonth)
+      throws SQLException {
+    StringDictionary cities = StringDictionary.cities();
+    if (flightIndex != null) {
+      return render(SkylineSearch.search(flightIndex, cities.code(originCity), cities.code(destinationCity),
+          dayOfMonth, directFlight));
+    }
+    bind();
+    routeLegsStatement.clearParameters();
+    routeLegsStatement.setInt(1, dayOfMonth);
+    routeLegsStatement.setString(2, originCity);
+    routeLegsStatement.setString(3, destinationCity);
+    ResultSet legsResult = routeLegsStatement.executeQuery();
+    List<Flight> departures = new ArrayList<Flight>();
+    // the flights reaching the destination by origin city code
+    Map<Integer, List<Flight>> arrivals = new HashMap<Integer, List<Flight>>();
+    int destCode = -1;
+    while (legsResult.next()) {
+      Flight f = Flight.fromColumns(legsResult, 0).encode();
+      // city names compare like in the database's default collation
+      if (f.originCity.equalsIgnoreCase(originCity)) {
+        departures.add(f);
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
+      if (f.destCity.equalsIgnoreCase(destinationCity)) {
+        destCode = f.destCode;
+        List<Flight> legs = arrivals.get(f.originCode);
+        if (legs == null) {
+          legs = new ArrayList<Flight>();
+          arrivals.put(f.originCode, legs);
+        }
+        legs.add(f);
+      }
+    }
+    legsResult.close();
+    Flight[][] byOrigin = new Flight[cities.size()][];
+    for (Map.Entry<Integer, List<Flight>> e : arrivals.entrySet()) {
+      byOrigin[e.getKey()] = e.getValue().toArray(new Flight[e.getValue().size()]);
+    }
+    return render(SkylineSearch.search(departures.toArray(new Flight[departures.size()]), byOrigin, destCode,
+        directFlight));
+  }
+
+  /**
+   * Lists the itineraries of a search and remembers them for book
+   */
+  private String render(List<Itinerary> results) {
+    if (results.size() == 0) {
+      return "No flights match your selection\n";
     }
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < results.size(); i++) {
+      results.get(i).appendTo(sb, i);
+    }
+    itinerary.addAll(results);
     return sb.toString();
   }
 
+  /**
+   * Finds up to {@code limit} direct itineraries ordered by (actual_time, fid),
+   * from the flight index when one is loaded.
+   */
+  private List<Itinerary> searchDirect(String originCity, String destinationCity, int dayOfMonth, int limit)
+          throws SQLException {
+    List<Itinerary> results = new ArrayList<Itinerary>();
+    if (limit <= 0) {
+      return results;
+    }
+    if (flightIndex != null) {
+      StringDictionary cities = StringDictionary.cities();
+      for (Flight f : flightIndex.direct(cities.code(originCity), cities.code(destinationCity), dayOfMonth, limit)) {
+        results.add(new Itinerary(f, null));
+      }
+      return results;
+    }
+    bind();
+    directStatement.clearParameters();
+    directStatement.setInt(1, limit);
+    directStatement.setString(2, originCity);
+    directStatement.setString(3, destinationCity);
+    directStatement.setInt(4, dayOfMonth);
+    ResultSet directResult = directStatement.executeQuery();
+    while (directResult.next()) {
+      results.add(new Itinerary(Flight.fromRow(directResult, 0), null));
+    }
+    directResult.close();
+    return results;
+  }
+
+  /**
+   * Finds the direct and indirect itineraries of a non-direct search with a
+   * single round trip, already merged in result order.
+   */
+  private List<Itinerary> searchMerged(String originCity, String destinationCity, int dayOfMonth, int limit)
+          throws SQLException {
+    List<Itinerary> results = new ArrayList<Itinerary>();
+    if (limit <= 0) {
+      return results;
+    }
+    bind();
+    mergedStatement.clearParameters();
+    mergedStatement.setInt(1, limit);
+    mergedStatement.setString(2, originCity);
+    mergedStatement.setString(3, destinationCity);
+    mergedStatement.setInt(4, dayOfMonth);
+    mergedStatement.setInt(5, limit);
+    mergedStatement.setString(6, originCity);
+    mergedStatement.setString(7, destinationCity);
+    mergedStatement.setInt(8, dayOfMonth);
+    mergedStatement.setInt(9, limit);
+    // at most limit rows, fetch them all at once
+    mergedStatement.setFetchSize(limit);
+    ResultSet mergedResult = mergedStatement.executeQuery();
+    while (mergedResult.next()) {
+      Flight first = Flight.fromColumns(mergedResult, 1);
+      Flight second = mergedResult.getInt(1) == 2 ? Flight.fromColumns(mergedResult, 10) : null;
+      results.add(new Itinerary(first, second));
+    }
+    mergedResult.close();
+    return results;
+  }
+
+  /**
+   * Reads the itineraries of a search from the materialized best itineraries
+   * of its route and day: every direct one up to the limit, then the best
+   * one-hop ones filling the remaining slots.
+   */
+  private List<Itinerary> searchBest(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int limit) throws SQLException {
+    bind();
+    bestStatement.clearParameters();
+    bestStatement.setString(1, originCity);
+    bestStatement.setString(2, destinationCity);
+    bestStatement.setInt(3, dayOfMonth);
+    bestStatement.setInt(4, directFlight ? 1 : 2);
+    bestStatement.setInt(5, limit);
+    bestStatement.setFetchSize(2 * limit);
+    List<Itinerary> results = new ArrayList<Itinerary>();
+    ResultSet bestResult = bestStatement.executeQuery();
+    while (bestResult.next()) {
+      if (bestResult.getInt(1) == 1) {
+        results.add(new Itinerary(Flight.fromColumns(bestResult, 1), null));
+      } else if (results.size() < limit) {
+        results.add(new Itinerary(Flight.fromColumns(bestResult, 1), Flight.fromColumns(bestResult, 10)));
+      }
+    }
+    bestResult.close();
+    Collections.sort(results, Itinerary.BY_TIME);
+    return results;
+  }
+
+  /**
+   * Finds up to {@code limit} one-hop itineraries ordered by total flight time,
+   * from the flight index when one is loaded. With {@code flights.max_stops}
+   * above 1 the index also finds itineraries with more stops.
+   */
+  private List<Itinerary> searchIndirect(String originCity, String destinationCity, int dayOfMonth, int limit)
+          throws SQLException {
+    if (multiHopSearch != null) {
+      StringDictionary cities = StringDictionary.cities();
+      return multiHopSearch.search(cities.code(originCity), cities.code(destinationCity), dayOfMonth, limit);
+    }
+    if (oneHopSearch != null) {
+      StringDictionary cities = StringDictionary.cities();
+      return oneHopSearch.search(cities.code(originCity), cities.code(destinationCity), dayOfMonth, limit);
+    }
+    List<Itinerary> results = new ArrayList<Itinerary>();
+    bind();
+    indirectStatement.clearParameters();
+    indirectStatement.setInt(1, limit);
+    indirectStatement.setString(2, originCity);
+    indirectStatement.setString(3, destinationCity);
+    indirectStatement.setInt(4, dayOfMonth);
+    ResultSet indirectResult = indirectStatement.executeQuery();
+    while (indirectResult.next()) {
+      // the second flight starts after the 18 columns of the first one
+      results.add(new Itinerary(Flight.fromRow(indirectResult, 0), Flight.fromRow(indirectResult, 18)));
+    }
+    indirectResult.close();
+    return results;
+  }
+
   /**
    * Implements the book itinerary function.
    *
@@ -501,82 +1166,193 @@ public class Query {
     if (itineraryId < 0 || itineraryId > itinerary.size() - 1) {
       return "No such itinerary " + itineraryId + "\n";
     }
-    Itinerary it = itinerary.get(itineraryId);
-    // judge whether booked two  flights on the same day
+    final Itinerary it = itinerary.get(itineraryId);
+    return run("book", "Booking failed\n", () -> book(it));
+  }
+
+  /**
+   * Creates the Capacities row of a flight if it has none. When a session
+   * booking the same flight creates it between the check and the insert, the
+   * booking has lost a race and fails with a serialization failure, which the
+   * transaction runner retries.
+   */
+  private void insertCapacity(int fid) throws SQLException {
+    capacityStatement.clearParameters();
+    capacityStatement.setInt(1, fid);
     try {
-      getDayStatement.clearParameters();
-      getDayStatement.setInt(1, it.fid1);
-      ResultSet dayResult = getDayStatement.executeQuery();
-      dayResult.next();
-      int dayOfMonth = dayResult.getInt("day_of_month");
-      dayResult.close();
-
-      getReservationsStatement.clearParameters();
-      getReservationsStatement.setString(1, this.login);
-      getReservationsStatement.setInt(2, dayOfMonth);
-      ResultSet reservation = getReservationsStatement.executeQuery();
-      //reservation.next();
-      if (reservation.next()) {
-        return "You cannot book two flights in the same day\n";
+      capacityStatement.execute();
+    } catch (SQLException e) {
+      if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+        throw e;
       }
+      throw new SQLTransientException("Capacities row of flight " + fid + " created concurrently", "40001", e);
+    }
+  }
+
+  private String book(Itinerary it) throws SQLException {
+    bind();
+    // BOOK_BATCH takes two legs, longer itineraries are booked statement by
+    // statement
+    if (atomicTransactions && it.legs() <= 2) {
+      return bookBatch(it);
+    }
+    // judge whether booked two  flights on the same day
+    int dayOfMonth = flight(it.fid1).dayOfMonth;
+
+    getReservationsStatement.clearParameters();
+    getReservationsStatement.setString(1, this.login);
+    getReservationsStatement.setInt(2, dayOfMonth);
+    ResultSet reservation = getReservationsStatement.executeQuery();
+    if (reservation.next()) {
       reservation.close();
+      return "You cannot book two flights in the same day\n";
+    }
+    reservation.close();
 
-      capacityStatement.clearParameters();
-      capacityStatement.setInt(1, it.fid1);
-      capacityStatement.execute();
-      // check the first flight capacity
-      getCapacityStatement.clearParameters();
-      getCapacityStatement.setInt(1, it.fid1);
-      ResultSet getCapacity1 = getCapacityStatement.executeQuery();
-      getCapacity1.next();
-      int capacity1 = getCapacity1.getInt("capacity");
-      getCapacity1.close();
+    if (seatInventory != null) {
+      return bookSeats(it, dayOfMonth);
+    }
 
-      if (capacity1 == 0) {
+    // check the capacity of every flight
+    for (Flight f : it.flights) {
+      insertCapacity(f.fid);
+      getCapacityStatement.clearParameters();
+      getCapacityStatement.setInt(1, f.fid);
+      ResultSet getCapacity = getCapacityStatement.executeQuery();
+      getCapacity.next();
+      int capacity = getCapacity.getInt("capacity");
+      getCapacity.close();
+      if (capacity == 0) {
         return "Booking failed\n";
       }
-      // check the second flight capacity
-      if (it.fid2 != -1) {
-        getCapacityStatement.clearParameters();
-        getCapacityStatement.setInt(1, it.fid2);
-        ResultSet getCapacity2 = getCapacityStatement.executeQuery();
-        getCapacity2.next();
-        int capacity2 = getCapacity2.getInt("capacity");
-        getCapacity2.close();
-        if (capacity2 == 0) {
-          return "Booking failed\n";
-        }
-      }
-      // update the first flight capacity
+    }
+    // update the capacity of every flight
+    for (Flight f : it.flights) {
       updateCapacityStatement.clearParameters();
-      updateCapacityStatement.setInt(1, it.fid1);
-      updateCapacityStatement.setInt(2, it.fid1);
+      updateCapacityStatement.setInt(1, f.fid);
+      updateCapacityStatement.setInt(2, f.fid);
       updateCapacityStatement.execute();
-      // update the second flight capacity
-      if (it.fid2 != -1) {
-        updateCapacityStatement.clearParameters();
-        updateCapacityStatement.setInt(1, it.fid2);
-        updateCapacityStatement.setInt(2, it.fid2);
-        updateCapacityStatement.execute();
+    }
+    // reservation table
+    int rid = nextReservationId();
+    insertReservation(rid, it, dayOfMonth);
+    return "Booked flight(s), reservation ID: " + rid + "\n";
+  }
+
+  /**
+   * Books an itinerary with the single BOOK_BATCH round trip
+   */
+  private String bookBatch(Itinerary it) throws SQLException {
+    if (seatInventory != null && !reserveSeats(it)) {
+      return "Booking failed\n";
+    }
+    int rid = nextReservationId();
+    bookBatchStatement.clearParameters();
+    bookBatchStatement.setString(1, this.login);
+    bookBatchStatement.setInt(2, it.fid1);
+    bookBatchStatement.setInt(3, it.fid2);
+    bookBatchStatement.setInt(4, rid);
+    bookBatchStatement.setInt(5, it.cost);
+    bookBatchStatement.setBoolean(6, seatInventory == null);
+    ResultSet result = batchResult(bookBatchStatement);
+    int status = result.getInt(1);
+    result.close();
+    if (status != 0) {
+      undo();
+    }
+    if (status == 1) {
+      return "You cannot book two flights in the same day\n";
+    }
+    if (status != 0) {
+      return "Booking failed\n";
+    }
+    return "Booked flight(s), reservation ID: " + rid + "\n";
+  }
+
+  /**
+   * Takes a reservation id, given back if the booking does not go through
+   */
+  private int nextReservationId() throws SQLException {
+    final int rid = reservationIds.next();
+    onRollback(() -> reservationIds.giveBack(rid));
+    return rid;
+  }
+
+  /**
+   * Takes the seats of an itinerary from the seat inventory, given back if the
+   * booking does not go through
+   */
+  private boolean reserveSeats(final Itinerary it) throws SQLException {
+    final int[] fids = it.fids();
+    if (!seatInventory.reserve(conn, fids)) {
+      return false;
+    }
+    final ConnectionPool.PooledConnection c = conn;
+    onRollback(() -> seatInventory.release(c, fids));
+    return true;
+  }
+
+  /**
+   * Runs a *_BATCH statement and returns its status row
+   */
+  private static ResultSet batchResult(PreparedStatement batch) throws SQLException {
+    boolean isResultSet = batch.execute();
+    while (!isResultSet) {
+      if (batch.getUpdateCount() == -1) {
+        throw new SQLException("Batch returned no status");
       }
-      // reservation table
-      insertReservationStatement.clearParameters();
-      insertReservationStatement.setInt(1, rid);
-      insertReservationStatement.setInt(2, it.fid1);
-      insertReservationStatement.setInt(3, it.fid2);
-      insertReservationStatement.setInt(4, 0);
-      insertReservationStatement.setInt(5, it.cost);
-      insertReservationStatement.setString(6, this.login);
-      insertReservationStatement.setInt(7, dayOfMonth);
-      insertReservationStatement.setInt(8, 0);
-      insertReservationStatement.execute();
-      rid += 1;
-      return "Booked flight(s), reservation ID: " + (rid-1) + "\n";
-    }
-    catch (SQLException e) {
-      e.printStackTrace();
+      isResultSet = batch.getMoreResults();
+    }
+    ResultSet result = batch.getResultSet();
+    if (!result.next()) {
+      result.close();
+      throw new SQLException("Batch returned no status");
     }
-    return "Booking failed\n";
+    return result;
+  }
+
+  /**
+   * Books an itinerary taking its seats from the seat inventory
+   */
+  private String bookSeats(Itinerary it, int dayOfMonth) throws SQLException {
+    if (!reserveSeats(it)) {
+      return "Booking failed\n";
+    }
+    int rid = nextReservationId();
+    insertReservation(rid, it, dayOfMonth);
+    return "Booked flight(s), reservation ID: " + rid + "\n";
+  }
+
+  /**
+   * Inserts the Reservations row of an itinerary, and its ReservationLegs rows
+   * if it has more than two legs
+   */
+  private void insertReservation(int rid, Itinerary it, int dayOfMonth) throws SQLException {
+    insertReservationStatement.clearParameters();
+    insertReservationStatement.setInt(1, rid);
+    insertReservationStatement.setInt(2, it.fid1);
+    insertReservationStatement.setInt(3, it.fid2);
+    insertReservationStatement.setInt(4, 0);
+    insertReservationStatement.setInt(5, it.cost);
+    insertReservationStatement.setString(6, this.login);
+    insertReservationStatement.setInt(7, dayOfMonth);
+    insertReservationStatement.setInt(8, 0);
+    insertReservationStatement.execute();
+    for (int leg = 2; leg < it.flights.length; leg++) {
+      insertLegStatement.clearParameters();
+      insertLegStatement.setInt(1, rid);
+      insertLegStatement.setInt(2, leg + 1);
+      insertLegStatement.setInt(3, it.flights[leg].fid);
+      insertLegStatement.execute();
+    }
+  }
+
+  /**
+   * Gives back the seats of a canceled reservation once the cancel committed
+   */
+  private void releaseSeats(final int[] fids) {
+    final ConnectionPool.PooledConnection c = conn;
+    onCommit(() -> seatInventory.release(c, fids));
   }
 
   /**
@@ -596,52 +1372,78 @@ public class Query {
    *         balance: [balance]\n" where [balance] is the remaining balance in the
    *         user's account.
    */
-  public String transaction_pay(int reservationId) {
+  public String transaction_pay(final int reservationId) {
     if (this.login == null) {
       return "Cannot pay, not logged in\n";
     }
-    try {
-      // get reservation
-      reservationsStatement.clearParameters();
-      reservationsStatement.setInt(1, reservationId);
-      ResultSet resResult = reservationsStatement.executeQuery();
-      if (!resResult.next()) {
-        resResult.close();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + this.login + "\n";
-      }
-      else {
-        int paid = resResult.getInt("paid");
-        if (paid == 1) {
-          resResult.close();
-          return "Cannot find unpaid reservation " + reservationId + " under user: " + this.login + "\n";
-        }
+    return run("pay", "Failed to pay for reservation " + reservationId + "\n", () -> pay(reservationId));
+  }
 
-        int ticket_price = resResult.getInt("price");
-        resResult.close();
-        // get user balance
-        getBalancesStatement.clearParameters();
-        getBalancesStatement.setString(1, this.login);
-        ResultSet balanceResult = getBalancesStatement.executeQuery();
-        balanceResult.next();
-        int balance = balanceResult.getInt("balance");
-        balanceResult.close();
-        if (ticket_price > balance) {
-          return "User has only " + balance + " in account but itinerary costs " + ticket_price +"\n";
-        }
-        // update balance and paid
-        updatePaidStatement.clearParameters();
-        updatePaidStatement.setInt(1, 1);
-        updatePaidStatement.setInt(2, reservationId);
-        updatePaidStatement.execute();
-
-        updateBalanceStatement.clearParameters();
-        updateBalanceStatement.setInt(1, balance-ticket_price);
-        updateBalanceStatement.setString(2, this.login);
-        updateBalanceStatement.execute();
-        return "Paid reservation: " + reservationId + " remaining balance: " + (balance - ticket_price) + "\n";
-      }
-    } catch (SQLException e) {e.printStackTrace(); }
-    return "Failed to pay for reservation " + reservationId + "\n";
+  private String pay(int reservationId) throws SQLException {
+    bind();
+    if (atomicTransactions) {
+      return payBatch(reservationId);
+    }
+    // get reservation
+    reservationsStatement.clearParameters();
+    reservationsStatement.setInt(1, reservationId);
+    ResultSet resResult = reservationsStatement.executeQuery();
+    // like PAY_BATCH, only an unpaid and live reservation of the user
+    if (!resResult.next() || !this.login.equals(resResult.getString("username"))
+        || resResult.getInt("canceled") == 1) {
+      resResult.close();
+      return "Cannot find unpaid reservation " + reservationId + " under user: " + this.login + "\n";
+    }
+    int paid = resResult.getInt("paid");
+    if (paid == 1) {
+      resResult.close();
+      return "Cannot find unpaid reservation " + reservationId + " under user: " + this.login + "\n";
+    }
+
+    int ticket_price = resResult.getInt("price");
+    resResult.close();
+    // get user balance
+    getBalancesStatement.clearParameters();
+    getBalancesStatement.setString(1, this.login);
+    ResultSet balanceResult = getBalancesStatement.executeQuery();
+    balanceResult.next();
+    int balance = balanceResult.getInt("balance");
+    balanceResult.close();
+    if (ticket_price > balance) {
+      return "User has only " + balance + " in account but itinerary costs " + ticket_price +"\n";
+    }
+    // update balance and paid
+    updatePaidStatement.clearParameters();
+    updatePaidStatement.setInt(1, 1);
+    updatePaidStatement.setInt(2, reservationId);
+    updatePaidStatement.execute();
+
+    updateBalanceStatement.clearParameters();
+    updateBalanceStatement.setInt(1, balance-ticket_price);
+    updateBalanceStatement.setString(2, this.login);
+    updateBalanceStatement.execute();
+    return "Paid reservation: " + reservationId + " remaining balance: " + (balance - ticket_price) + "\n";
+  }
+
+  /**
+   * Pays a reservation with the single PAY_BATCH round trip
+   */
+  private String payBatch(int reservationId) throws SQLException {
+    payBatchStatement.clearParameters();
+    payBatchStatement.setString(1, this.login);
+    payBatchStatement.setInt(2, reservationId);
+    ResultSet result = batchResult(payBatchStatement);
+    int status = result.getInt(1);
+    int balance = result.getInt(2);
+    int price = result.getInt(3);
+    result.close();
+    if (status == 1) {
+      return "Cannot find unpaid reservation " + reservationId + " under user: " + this.login + "\n";
+    }
+    if (status == 2) {
+      return "User has only " + balance + " in account but itinerary costs " + price + "\n";
+    }
+    return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
   }
 
   /**
@@ -668,79 +1470,88 @@ public class Query {
     if (this.login == null) {
       return "Cannot view reservations, not logged in\n";
     }
-    try {
-      reservationsTableStatement.clearParameters();
-      reservationsTableStatement.setString(1, this.login);
-      ResultSet resResult = reservationsTableStatement.executeQuery();
-      //ResultSet resResult = resResult2;
-      //System.out.println(resResult);
-      if (!resResult.isBeforeFirst()) {
-        return "No reservations found\n";
+    return run("reservations", "Failed to retrieve reservations\n", () -> reservations());
+  }
+
+  private String reservations() throws SQLException {
+    bind();
+    reservationsTableStatement.clearParameters();
+    reservationsTableStatement.setString(1, this.login);
+    ResultSet resResult = reservationsTableStatement.executeQuery();
+    if (!resResult.isBeforeFirst()) {
+      resResult.close();
+      return "No reservations found\n";
+    }
+    // rid, paid, fid1, fid2 and the other legs of every reservation
+    List<int[]> rows = new ArrayList<int[]>();
+    int[] last = null;
+    while (resResult.next()) {
+      if (resResult.getInt(3) != 0) {
+        resResult.close();
+        return "Failed to retrieve reservations\n";
       }
-      else {
-        StringBuffer sb = new StringBuffer();
-        while (resResult.next()) {
-          if (resResult.getInt("canceled") == 0) {
-            int id = resResult.getInt("rid");
-            int paid = resResult.getInt("paid");
-            int fid1 = resResult.getInt("fid1");
-            int fid2 = resResult.getInt("fid2");
-            // get fid1 information
-            getFlightStatement.clearParameters();
-            getFlightStatement.setInt(1, fid1);
-            ResultSet fid1Result = getFlightStatement.executeQuery();
-            fid1Result.next();
-
-            int dayOfMonth1 = fid1Result.getInt("day_of_month");
-            String carrierId1 = fid1Result.getString("carrier_id");
-            String flightNum1 = fid1Result.getString("flight_num");
-            String originCity1 = fid1Result.getString("origin_city");
-            String destCity1 = fid1Result.getString("dest_city");
-            int time1 = fid1Result.getInt("actual_time");
-            int capacity1 = fid1Result.getInt("capacity");
-            int price1 = fid1Result.getInt("price");
-            fid1Result.close();
-            String temp;
-            if (paid == 1) {
-              temp = "true:";
-            }
-            else {
-              temp = "false:";
-            }
-            sb.append("Reservation " + id + " paid: " + temp + "\n");
-            sb.append("ID: " + fid1 + " Day: " + dayOfMonth1 + " Carrier: " + carrierId1
-                    + " Number: " + flightNum1 + " Origin: " + originCity1
-                    + " Dest: " + destCity1 + " Duration: " + time1
-                    + " Capacity: " + capacity1 + " Price: " + price1 + "\n");
-            // get fid2 information
-            if (fid2 != -1) {
-              getFlightStatement.clearParameters();
-              getFlightStatement.setInt(1, fid2);
-              ResultSet fid2Result = getFlightStatement.executeQuery();
-              fid2Result.next();
-
-              int dayOfMonth2 = fid2Result.getInt("day_of_month");
-              String carrierId2 = fid2Result.getString("carrier_id");
-              String flightNum2 = fid2Result.getString("flight_num");
-              String originCity2 = fid2Result.getString("origin_city");
-              String destCity2 = fid2Result.getString("dest_city");
-              int time2 = fid2Result.getInt("actual_time");
-              int capacity2 = fid2Result.getInt("capacity");
-              int price2 = fid2Result.getInt("price");
-              fid2Result.close();
-              sb.append("ID: " + fid2 + " Day: " + dayOfMonth2 + " Carrier: " + carrierId2
-                      + " Number: " + flightNum2 + " Origin: " + originCity2
-                      + " Dest: " + destCity2 + " Duration: " + time2
-                      + " Capacity: " + capacity2 + " Price: " + price2 + "\n");
-            }
-          } else {
-            return "Failed to retrieve reservations\n";
-          }
+      int rid = resResult.getInt(1);
+      if (last == null || last[0] != rid) {
+        last = new int[] { rid, resResult.getInt(2), resResult.getInt(4), resResult.getInt(5) };
+        rows.add(last);
+      }
+      int leg = resResult.getInt(6);
+      if (!resResult.wasNull()) {
+        last = Arrays.copyOf(last, last.length + 1);
+        last[last.length - 1] = leg;
+        rows.set(rows.size() - 1, last);
+      }
+    }
+    resResult.close();
+
+    Map<Integer, Flight> flights = new HashMap<Integer, Flight>();
+    boolean missing = false;
+    for (int[] row : rows) {
+      for (int i = 2; i < row.length; i++) {
+        if (row[i] != -1 && !cached(flights, row[i])) {
+          missing = true;
+        }
+      }
+    }
+    if (missing) {
+      reservationFlightsStatement.clearParameters();
+      reservationFlightsStatement.setString(1, this.login);
+      reservationFlightsStatement.setString(2, this.login);
+      ResultSet flightResult = reservationFlightsStatement.executeQuery();
+      while (flightResult.next()) {
+        Flight f = Flight.fromRow(flightResult, 0);
+        flights.put(f.fid, f);
+        if (flightCache != null) {
+          flightCache.put(f);
+        }
+      }
+      flightResult.close();
+    }
+
+    StringBuffer sb = new StringBuffer();
+    for (int[] row : rows) {
+      sb.append("Reservation " + row[0] + " paid: " + (row[1] == 1) + ":\n");
+      for (int i = 2; i < row.length; i++) {
+        if (row[i] != -1) {
+          sb.append(flights.get(row[i])).append('\n');
         }
-        return sb.toString();
       }
-    } catch (SQLException e) {e.printStackTrace(); }
-    return "Failed to retrieve reservations\n";
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Adds the flight to {@code flights} if it is cached
+   *
+   * @return false if it has to be read from the database
+   */
+  private boolean cached(Map<Integer, Flight> flights, int fid) {
+    Flight f = flightCache == null ? null : flightCache.get(fid);
+    if (f == null) {
+      return false;
+    }
+    flights.put(fid, f);
+    return true;
   }
 
   /**
@@ -757,111 +1568,151 @@ public class Query {
    *         Even though a reservation has been canceled, its ID should not be
    *         reused by the system.
    */
-  public String transaction_cancel(int reservationId) {
+  public String transaction_cancel(final int reservationId) {
     if (this.login == null) {
       return "Cannot cancel reservations,not logged in\n";
     }
-    try {
-      reservationsStatement.clearParameters();
-      reservationsStatement.setInt(1, reservationId);
-      ResultSet resResult = reservationsStatement.executeQuery();
-      if (!resResult.next()) {
-        return "Failed to cancel reservation " + reservationId + "\n";
-      }
-      else if (resResult.getInt("canceled") == 1) {
-        return "Failed to cancel reservation " + reservationId + "\n";
+    return run("cancel", "Failed to cancel reservation " + reservationId + "\n", () -> cancel(reservationId));
+  }
+
+  private String cancel(int reservationId) throws SQLException {
+    bind();
+    if (atomicTransactions) {
+      return cancelBatch(reservationId);
+    }
+    reservationLegsStatement.clearParameters();
+    reservationLegsStatement.setInt(1, reservationId);
+    ResultSet resResult = reservationLegsStatement.executeQuery();
+    // like CANCEL_BATCH, only a live reservation of the user
+    if (!resResult.next() || resResult.getInt("canceled") == 1
+        || !this.login.equals(resResult.getString("username"))) {
+      resResult.close();
+      return "Failed to cancel reservation " + reservationId + "\n";
+    }
+    int price = resResult.getInt("price");
+    boolean paid = resResult.getInt("paid") == 1;
+    int[] fids = legs(resResult, 5);
+
+    // refund only a paid reservation
+    if (paid) {
+      // get current balance
+      getBalancesStatement.clearParameters();
+      getBalancesStatement.setString(1, this.login);
+      ResultSet balanceResult = getBalancesStatement.executeQuery();
+      balanceResult.next();
+      int remainBalance = balanceResult.getInt("balance");
+      balanceResult.close();
+      // update balance
+      updateBalanceStatement.clearParameters();
+      updateBalanceStatement.setInt(1, price + remainBalance);
+      updateBalanceStatement.setString(2, this.login);
+      updateBalanceStatement.execute();
+    }
+
+    // update reservation table
+    cancelStatement.clearParameters();
+    cancelStatement.setInt(1, 0);
+    cancelStatement.setInt(2, 1);
+    cancelStatement.setInt(3, reservationId);
+    cancelStatement.execute();
+
+    if (seatInventory != null) {
+      releaseSeats(fids);
+      return "Canceled reservation " + reservationId + "\n";
+    }
+
+    for (int fid : fids) {
+      if (fid == -1) {
+        continue;
       }
-      else {
-        int price = resResult.getInt("price");
-        int fid1 = resResult.getInt("fid1");
-        int fid2 = resResult.getInt("fid2");
-        resResult.close();
+      // get the flight's current capacity
+      getCapacityStatement.clearParameters();
+      getCapacityStatement.setInt(1, fid);
+      ResultSet capacityResult = getCapacityStatement.executeQuery();
+      capacityResult.next();
+      int remainCapacity = capacityResult.getInt("capacity");
+      capacityResult.close();
+      // update the flight's capacity
+      addCapacityStatement.clearParameters();
+      addCapacityStatement.setInt(1, remainCapacity + 1);
+      addCapacityStatement.setInt(2, fid);
+      addCapacityStatement.execute();
+    }
+    return "Canceled reservation " + reservationId + "\n";
+  }
 
-        // get current balance
-        getBalancesStatement.clearParameters();
-        getBalancesStatement.setString(1, this.login);
-        ResultSet balanceResult = getBalancesStatement.executeQuery();
-        balanceResult.next();
-        int remainBalance = balanceResult.getInt("balance");
-        balanceResult.close();
-        // update balance
-        updateBalanceStatement.clearParameters();
-        updateBalanceStatement.setInt(1, price + remainBalance);
-        updateBalanceStatement.setString(2, this.login);
-        updateBalanceStatement.execute();
-
-        // update reservation table
-        cancelStatement.clearParameters();
-        cancelStatement.setInt(1, 0);
-        cancelStatement.setInt(2, 1);
-        cancelStatement.setInt(3, reservationId);
-        cancelStatement.execute();
-
-        // get 1st flight current capacity
-        getCapacityStatement.clearParameters();
-        getCapacityStatement.setInt(1, fid1);
-        ResultSet capacityResult1 = getCapacityStatement.executeQuery();
-        capacityResult1.next();
-        int remainCapacity1 = capacityResult1.getInt("capacity");
-        capacityResult1.close();
-        // update 1st flight capacity table
-        addCapacityStatement.clearParameters();
-        addCapacityStatement.setInt(1, remainCapacity1 + 1);
-        addCapacityStatement.setInt(2, fid1);
-        addCapacityStatement.execute();
-
-        // get 2nd flight current capacity
-        if (fid2 != -1) {
-          getCapacityStatement.clearParameters();
-          getCapacityStatement.setInt(1, fid2);
-          ResultSet capacityResult2 = getCapacityStatement.executeQuery();
-          capacityResult2.next();
-          int remainCapacity2 = capacityResult2.getInt("capacity");
-          capacityResult2.close();
-          // update 2nd flight capacity
-          addCapacityStatement.clearParameters();
-          addCapacityStatement.setInt(1, remainCapacity2 + 1);
-          addCapacityStatement.setInt(2, fid2);
-          addCapacityStatement.execute();
+  /**
+   * Reads the fids of a reservation from its rows, one per leg after the
+   * second one, fid1 and fid2 in columns {@code column} and
+   * {@code column + 1} and the other legs in {@code column + 2}. Closes the
+   * rows.
+   *
+   * @return fid1, fid2 (-1 if direct) and the other legs in order
+   */
+  private static int[] legs(ResultSet rows, int column) throws SQLException {
+    int[] fids = new int[] { rows.getInt(column), rows.getInt(column + 1) };
+    int n = 2;
+    do {
+      int fid = rows.getInt(column + 2);
+      if (!rows.wasNull()) {
+        if (n == fids.length) {
+          fids = Arrays.copyOf(fids, n * 2);
         }
-        return "Canceled reservation " + reservationId + "\n";
+        fids[n++] = fid;
       }
-    } catch (SQLException e) {e.printStackTrace(); }
-    return "Failed to cancel reservation " + reservationId + "\n";
+    } while (rows.next());
+    rows.close();
+    return Arrays.copyOf(fids, n);
+  }
+
+  /**
+   * Cancels a reservation with the single CANCEL_BATCH round trip
+   */
+  private String cancelBatch(int reservationId) throws SQLException {
+    cancelBatchStatement.clearParameters();
+    cancelBatchStatement.setString(1, this.login);
+    cancelBatchStatement.setInt(2, reservationId);
+    cancelBatchStatement.setBoolean(3, seatInventory == null);
+    ResultSet result = batchResult(cancelBatchStatement);
+    int status = result.getInt(1);
+    // the status row repeats once per leg after the second one
+    int[] fids = legs(result, 2);
+    if (status != 0) {
+      return "Failed to cancel reservation " + reservationId + "\n";
+    }
+    if (seatInventory != null) {
+      releaseSeats(fids);
+    }
+    return "Canceled reservation " + reservationId + "\n";
   }
 
   /**
    * Example utility function that uses prepared statements
    */
   private int checkFlightCapacity(int fid) throws SQLException {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+    return flight(fid).capacity;
   }
 
   /**
-   * A class to store flight information.
+   * Reads a flight by fid, from the flight cache when it is enabled
    */
-  class Flight {
-    public int fid;
-    public int dayOfMonth;
-    public String carrierId;
-    public String flightNum;
-    public String originCity;
-    public String destCity;
-    public int time;
-    public int capacity;
-    public int price;
-
-    @Override
-    public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: " + flightNum + " Origin: "
-          + originCity + " Dest: " + destCity + " Duration: " + time + " Capacity: " + capacity + " Price: " + price;
+  private Flight flight(int fid) throws SQLException {
+    Flight f = flightCache == null ? null : flightCache.get(fid);
+    if (f != null) {
+      return f;
+    }
+    getFlightStatement.clearParameters();
+    getFlightStatement.setInt(1, fid);
+    ResultSet results = getFlightStatement.executeQuery();
+    if (!results.next()) {
+      results.close();
+      throw new SQLException("No flight with fid " + fid);
+    }
+    f = Flight.fromRow(results, 0);
+    results.close();
+    if (flightCache != null) {
+      flightCache.put(f);
     }
+    return f;
   }
 }
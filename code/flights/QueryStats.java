@@ -0,0 +1,153 @@
+package edu.uw.cs;
+
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Latencies and errors of every transaction type and of every canned statement
+ * of {@link Query}, shared by all sessions of the process.
+ *
+ * A transaction is timed from the start of its unit of work to its commit,
+ * retries included. A statement is timed for each execution, up to the first
+ * rows of a query, by a {@link TimedStatement} wrapped around it when it is
+ * prepared. Recording costs a few atomic adds and no lock. Every type and
+ * statement is registered as a {@link LatencyStatsMBean}, named
+ * {@code edu.uw.cs:type=Transaction,name=book} or
+ * {@code edu.uw.cs:type=Statement,name=DIRECT}, and the {@code stats} command
+ * prints all of them. So are the hits, misses and evictions of the caches
+ * shared by the sessions, as {@code edu.uw.cs:type=Cache,name=flights}.
+ */
+public class QueryStats {
+  private static final AtomicReference<QueryStats> SHARED = new AtomicReference<QueryStats>();
+
+  private final ConcurrentHashMap<String, LatencyStats> transactions = new ConcurrentHashMap<String, LatencyStats>();
+  private final ConcurrentHashMap<String, LatencyStats> statements = new ConcurrentHashMap<String, LatencyStats>();
+  private final ConcurrentHashMap<String, CacheStats> caches = new ConcurrentHashMap<String, CacheStats>();
+  private final boolean jmx;
+
+  public QueryStats(boolean jmx) {
+    this.jmx = jmx;
+  }
+
+  /**
+   * Returns the statistics shared by all sessions of this process, or null if
+   * {@code flights.stats} is false. {@code flights.stats_jmx} = false keeps
+   * them out of the platform MBean server.
+   */
+  static QueryStats shared(Properties config) {
+    if (!Boolean.parseBoolean(config.getProperty("flights.stats", "true"))) {
+      return null;
+    }
+    QueryStats stats = SHARED.get();
+    if (stats == null) {
+      boolean jmx = Boolean.parseBoolean(config.getProperty("flights.stats_jmx", "true"));
+      SHARED.compareAndSet(null, new QueryStats(jmx));
+      stats = SHARED.get();
+    }
+    return stats;
+  }
+
+  /**
+   * The statistics of a transaction type
+   */
+  public LatencyStats transaction(String type) {
+    return get(transactions, "Transaction", type);
+  }
+
+  /**
+   * The statistics of a canned statement
+   */
+  public LatencyStats statement(String name) {
+    return get(statements, "Statement", name);
+  }
+
+  /**
+   * Reports a cache shared by the sessions under {@code name}
+   */
+  public void cache(String name, CacheStats cache) {
+    if (caches.putIfAbsent(name, cache) == null) {
+      register("Cache", name, cache);
+    }
+  }
+
+  private LatencyStats get(ConcurrentHashMap<String, LatencyStats> all, String kind, String name) {
+    LatencyStats stats = all.get(name);
+    if (stats == null) {
+      LatencyStats created = new LatencyStats();
+      stats = all.putIfAbsent(name, created);
+      if (stats == null) {
+        stats = created;
+        register(kind, name, created);
+      }
+    }
+    return stats;
+  }
+
+  private void register(String kind, String name, Object stats) {
+    if (!jmx) {
+      return;
+    }
+    try {
+      ObjectName objectName = new ObjectName("edu.uw.cs:type=" + kind + ",name=" + ObjectName.quote(name));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (!server.isRegistered(objectName)) {
+        server.registerMBean(stats, objectName);
+      }
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Wraps a statement so that its executions are recorded under {@code name}
+   */
+  public PreparedStatement timed(String name, PreparedStatement stmt) {
+    return new TimedStatement(stmt, statement(name));
+  }
+
+  /**
+   * Prints the statistics of every transaction type, with the retries counted
+   * by the transaction runner if not null, of every statement and of every
+   * cache
+   */
+  public String report(TransactionRunner runner) {
+    Map<String, TransactionRunner.Counters> retries = runner == null
+        ? Collections.<String, TransactionRunner.Counters>emptyMap()
+        : runner.allCounters();
+    StringBuilder sb = new StringBuilder();
+    header(sb, "transaction");
+    for (Map.Entry<String, LatencyStats> e : new TreeMap<String, LatencyStats>(transactions).entrySet()) {
+      TransactionRunner.Counters c = retries.get(e.getKey());
+      line(sb, e.getKey(), e.getValue(), String.valueOf(c == null ? 0 : c.getRetries()));
+    }
+    header(sb, "statement");
+    for (Map.Entry<String, LatencyStats> e : new TreeMap<String, LatencyStats>(statements).entrySet()) {
+      line(sb, e.getKey(), e.getValue(), "-");
+    }
+    if (!caches.isEmpty()) {
+      sb.append(String.format("%-20s %9s %9s %9s %9s\n", "cache", "hits", "misses", "evictions", "hit rate"));
+      for (Map.Entry<String, CacheStats> e : new TreeMap<String, CacheStats>(caches).entrySet()) {
+        CacheStats c = e.getValue();
+        long lookups = c.getHits() + c.getMisses();
+        sb.append(String.format("%-20s %9d %9d %9d %8.1f%%\n", e.getKey(), c.getHits(), c.getMisses(),
+            c.getEvictions(), lookups == 0 ? 0.0 : 100.0 * c.getHits() / lookups));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void header(StringBuilder sb, String kind) {
+    sb.append(String.format("%-20s %9s %7s %7s %9s %9s %9s %9s %9s\n", kind, "count", "errors", "retries", "mean ms",
+        "p50 ms", "p99 ms", "p999 ms", "max ms"));
+  }
+
+  private static void line(StringBuilder sb, String name, LatencyStats s, String retries) {
+    sb.append(String.format("%-20s %9d %7d %7s %9.3f %9.3f %9.3f %9.3f %9.3f\n", name, s.getCount(), s.getErrors(),
+        retries, s.getMeanMicros() / 1e3, s.getP50Micros() / 1e3, s.getP99Micros() / 1e3, s.getP999Micros() / 1e3,
+        s.getMaxMicros() / 1e3));
+  }
+}
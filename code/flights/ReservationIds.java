@@ -0,0 +1,197 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Hands out reservation ids without a database round trip per booking.
+ *
+ * Ids are leased in blocks from the "rid" row of the Sequences table (hi/lo):
+ * a single atomic UPDATE moves the persistent sequence past the block, and the
+ * ids of the block are then handed out in memory. Ids are unique across
+ * processes and restarts; the unused rest of a block is lost when the process
+ * stops. Within a process all sessions share one allocator, so a single
+ * session sees 1, 2, 3, ... on an empty database.
+ *
+ * Blocks are leased on a dedicated autocommitted connection, so a lease is
+ * never rolled back together with the booking that triggered it.
+ */
+public class ReservationIds {
+  private static final String LEASE = "UPDATE Sequences SET next_value = next_value + ? "
+          + "OUTPUT deleted.next_value WHERE name = 'rid'";
+  // the lease in two statements, for databases without the OUTPUT clause
+  private static final String ADVANCE = "UPDATE Sequences SET next_value = next_value + ? WHERE name = 'rid'";
+  private static final String READ = "SELECT next_value FROM Sequences WHERE name = 'rid'";
+  private static final String CREATE = "INSERT INTO Sequences VALUES ('rid', 1)";
+  private static final String RESET = "DELETE FROM Sequences WHERE name = 'rid'";
+
+  private static final AtomicReference<ReservationIds> SHARED = new AtomicReference<ReservationIds>();
+
+  private final ConnectionPool pool;
+  private final int blockSize;
+  private final AtomicReference<Block> block = new AtomicReference<Block>();
+  private final ReentrantLock leaseLock = new ReentrantLock();
+  private Connection leaseConnection;
+
+  /**
+   * A leased range of ids, [next, end)
+   */
+  private static class Block {
+    final AtomicInteger next;
+    final int end;
+
+    Block(int start, int end) {
+      this.next = new AtomicInteger(start);
+      this.end = end;
+    }
+  }
+
+  ReservationIds(ConnectionPool pool, int blockSize) {
+    this.pool = pool;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Returns the allocator shared by all sessions of this process. The first
+   * caller's pool and {@code flights.rid_block_size} setting are used.
+   */
+  static ReservationIds shared(ConnectionPool pool) {
+    ReservationIds ids = SHARED.get();
+    if (ids == null) {
+      int blockSize = Integer.parseInt(pool.getConfig().getProperty("flights.rid_block_size", "100"));
+      SHARED.compareAndSet(null, new ReservationIds(pool, blockSize));
+      ids = SHARED.get();
+    }
+    return ids;
+  }
+
+  /**
+   * Returns a reservation id never handed out before
+   */
+  public int next() throws SQLException {
+    while (true) {
+      Block current = block.get();
+      if (current != null) {
+        int id = current.next.getAndIncrement();
+        if (id < current.end) {
+          return id;
+        }
+      }
+      leaseLock.lock();
+      try {
+        // only the first session to find the block used up leases a new one
+        if (block.get() == current) {
+          int start = lease();
+          block.set(new Block(start, start + blockSize));
+        }
+      } finally {
+        leaseLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Takes back an id from {@link #next()} that ended up unused. This only
+   * succeeds if no other id has been handed out since, otherwise the id is
+   * simply skipped.
+   */
+  public void giveBack(int id) {
+    Block current = block.get();
+    if (current != null) {
+      current.next.compareAndSet(id + 1, id);
+    }
+  }
+
+  /**
+   * Restarts the sequence from 1, for when Reservations has been emptied
+   */
+  public void reset() throws SQLException {
+    leaseLock.lock();
+    try {
+      Statement stmt = connection().createStatement();
+      stmt.executeUpdate(RESET);
+      stmt.close();
+      block.set(null);
+    } finally {
+      leaseLock.unlock();
+    }
+  }
+
+  // called with leaseLock held
+  private int lease() throws SQLException {
+    Connection c = connection();
+    while (true) {
+      Integer start = pool.getBackend().supportsTransactSql() ? leaseWithOutput(c) : leaseInTransaction(c);
+      if (start != null) {
+        return start;
+      }
+      // first lease ever, start the sequence unless another process just did
+      try {
+        Statement create = c.createStatement();
+        create.executeUpdate(CREATE);
+        create.close();
+      } catch (SQLException e) {
+        // 23000 on SQL Server, 23505 elsewhere
+        if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the sequence past a block and returns the start of the block, or
+   * null if the sequence does not exist yet
+   */
+  private Integer leaseWithOutput(Connection c) throws SQLException {
+    PreparedStatement stmt = c.prepareStatement(LEASE);
+    try {
+      stmt.setInt(1, blockSize);
+      ResultSet rs = stmt.executeQuery();
+      Integer start = rs.next() ? rs.getInt(1) : null;
+      rs.close();
+      return start;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Same as {@link #leaseWithOutput}, with an update and a read in one
+   * transaction
+   */
+  private Integer leaseInTransaction(Connection c) throws SQLException {
+    c.setAutoCommit(false);
+    try {
+      PreparedStatement advance = c.prepareStatement(ADVANCE);
+      advance.setInt(1, blockSize);
+      int updated = advance.executeUpdate();
+      advance.close();
+      Integer start = null;
+      if (updated == 1) {
+        Statement read = c.createStatement();
+        ResultSet rs = read.executeQuery(READ);
+        rs.next();
+        start = rs.getInt(1) - blockSize;
+        rs.close();
+        read.close();
+      }
+      c.commit();
+      return start;
+    } catch (SQLException e) {
+      c.rollback();
+      throw e;
+    } finally {
+      c.setAutoCommit(true);
+    }
+  }
+
+  // called with leaseLock held
+  private Connection connection() throws SQLException {
+    if (leaseConnection == null || leaseConnection.isClosed()) {
+      leaseConnection = pool.openDedicated();
+    }
+    return leaseConnection;
+  }
+}
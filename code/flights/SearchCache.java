@@ -0,0 +1,230 @@
+package edu.uw.cs;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Caches the ranked itineraries of recent searches, shared by all sessions of
+ * the process.
+ *
+ * Results are keyed by origin, destination, day and the direct flag, and
+ * remember the number of itineraries they were searched for. A search for
+ * fewer itineraries is answered from them too: a result holds every direct
+ * itinerary up to its limit and the best indirect ones filling the remaining
+ * slots, which contains the answer for any smaller limit. A result with fewer
+ * itineraries than its limit holds every match and answers any limit.
+ *
+ * Results expire after {@code flights.search_cache_ttl_ms} milliseconds, the
+ * least recently used ones are dropped beyond
+ * {@code flights.search_cache_entries} results, and all of them are dropped by
+ * {@link #invalidate()} when the flights are reloaded.
+ */
+public class SearchCache implements SearchCacheMBean {
+  private static final AtomicReference<SearchCache> SHARED = new AtomicReference<SearchCache>();
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LinkedHashMap<Key, Result> results;
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public SearchCache(final int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = ttlMillis * 1000000L;
+    this.results = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+        if (size() > maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the cache shared by all sessions of this process, configured by the
+   * first caller's {@code flights.search_cache_*} settings, or null if
+   * {@code flights.search_cache_entries} is 0.
+   */
+  static SearchCache shared(Properties config) {
+    int entries = Integer.parseInt(config.getProperty("flights.search_cache_entries", "10000"));
+    if (entries <= 0) {
+      return null;
+    }
+    SearchCache cache = SHARED.get();
+    if (cache == null) {
+      long ttl = Long.parseLong(config.getProperty("flights.search_cache_ttl_ms", "60000"));
+      SHARED.compareAndSet(null, new SearchCache(entries, ttl));
+      cache = SHARED.get();
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the ranked itineraries of a search, or null if they are not cached
+   */
+  public List<Itinerary> get(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries) {
+    Key key = new Key(originCity, destinationCity, directFlight, dayOfMonth);
+    Result result;
+    synchronized (results) {
+      result = results.get(key);
+      if (result != null && result.expires - System.nanoTime() < 0) {
+        results.remove(key);
+        result = null;
+      }
+    }
+    if (result == null || !result.answers(numberOfItineraries)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return result.top(numberOfItineraries);
+  }
+
+  /**
+   * The current generation, to be passed to {@link #put} with results computed
+   * after this call
+   */
+  public long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Caches the ranked itineraries of a search, unless the flights were reloaded
+   * since {@code generation} or a result answering more limits is cached
+   * already.
+   */
+  public void put(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, List<Itinerary> ranked, long generation) {
+    Key key = new Key(originCity, destinationCity, directFlight, dayOfMonth);
+    Result result = new Result(numberOfItineraries, new ArrayList<Itinerary>(ranked), System.nanoTime() + ttlNanos);
+    synchronized (results) {
+      if (generation != this.generation.get()) {
+        return;
+      }
+      Result cached = results.get(key);
+      if (cached == null || cached.expires - System.nanoTime() < 0 || !cached.answers(numberOfItineraries)) {
+        results.put(key, result);
+      }
+    }
+  }
+
+  /**
+   * Drops every cached result, for when the flights have been reloaded
+   */
+  public void invalidate() {
+    synchronized (results) {
+      generation.incrementAndGet();
+      results.clear();
+    }
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Results dropped beyond {@code flights.search_cache_entries}, not counting
+   * expired or invalidated ones
+   */
+  @Override
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public int size() {
+    synchronized (results) {
+      return results.size();
+    }
+  }
+
+  private static final class Key {
+    final String originCity;
+    final String destinationCity;
+    final boolean directFlight;
+    final int dayOfMonth;
+
+    Key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return dayOfMonth == k.dayOfMonth && directFlight == k.directFlight && originCity.equals(k.originCity)
+          && destinationCity.equals(k.destinationCity);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = originCity.hashCode();
+      h = 31 * h + destinationCity.hashCode();
+      h = 31 * h + dayOfMonth;
+      return directFlight ? h : ~h;
+    }
+  }
+
+  private static final class Result {
+    final int limit;
+    final List<Itinerary> ranked;
+    final long expires;
+
+    Result(int limit, List<Itinerary> ranked, long expires) {
+      this.limit = limit;
+      this.ranked = ranked;
+      this.expires = expires;
+    }
+
+    /**
+     * True if the result holds the answer of a search for {@code n} itineraries
+     */
+    boolean answers(int n) {
+      return n <= limit || ranked.size() < limit;
+    }
+
+    /**
+     * The answer of a search for {@code n} itineraries: the first direct ones
+     * up to n, then the fastest indirect ones filling the remaining slots, in
+     * rank order.
+     */
+    List<Itinerary> top(int n) {
+      int direct = 0;
+      for (Itinerary it : ranked) {
+        if (it.fid2 == -1) {
+          direct++;
+        }
+      }
+      int directSlots = Math.min(n, direct);
+      int indirectSlots = n - directSlots;
+      List<Itinerary> top = new ArrayList<Itinerary>(Math.min(n, ranked.size()));
+      for (Itinerary it : ranked) {
+        if (it.fid2 == -1 ? directSlots-- > 0 : indirectSlots-- > 0) {
+          top.add(it);
+        }
+      }
+      return top;
+    }
+  }
+}
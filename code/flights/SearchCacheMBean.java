@@ -0,0 +1,8 @@
+package edu.uw.cs;
+
+/**
+ * JMX view of the {@link SearchCache}, see {@link QueryStats}
+ */
+public interface SearchCacheMBean extends CacheStats {
+  int getMaxEntries();
+}
@@ -0,0 +1,198 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * In-memory count of the remaining seats of every booked flight, shared by all
+ * sessions of the process.
+ *
+ * Booking a flight is an atomic check-and-decrement of its counter and
+ * canceling one an increment, so sessions never wait on each other or on a
+ * Capacities row lock. A flight's counter is loaded from Capacities (or the
+ * flight's capacity if it has never been booked) the first time it is touched.
+ * Changed counters are written back to Capacities in batches by a background
+ * thread.
+ *
+ * The inventory assumes it is the only writer of Capacities.
+ */
+public class SeatInventory {
+  private static final String REMAINING_SEATS = "SELECT COALESCE(C.capacity, F.capacity) "
+          + "FROM Flights F LEFT JOIN Capacities C ON C.fid = F.fid WHERE F.fid = ?";
+
+  private static final String INSERT_CAPACITY = "INSERT INTO Capacities "
+          + "SELECT F.fid, ? FROM Flights F "
+          + "WHERE F.fid = ? AND NOT EXISTS (SELECT * FROM Capacities C WHERE C.fid = F.fid)";
+
+  private static final String UPDATE_CAPACITY = "UPDATE Capacities SET capacity = ? WHERE fid = ?";
+
+  private final ConnectionPool pool;
+  private final ConcurrentHashMap<Integer, AtomicInteger> seats = new ConcurrentHashMap<Integer, AtomicInteger>();
+  private final Set<Integer> dirty = ConcurrentHashMap.<Integer>newKeySet();
+  private final ScheduledExecutorService flusher;
+
+  /**
+   * Creates the inventory and starts writing changes back to Capacities every
+   * {@code flushMillis} milliseconds.
+   */
+  public SeatInventory(ConnectionPool pool, long flushMillis) {
+    this.pool = pool;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "flights-seat-flusher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Takes one seat on each flight of an itinerary, or none of them. An fid of
+   * -1, like the fid2 of a direct itinerary, is skipped.
+   *
+   * @param c connection used to load the counters not in memory yet
+   * @return false if one of the flights is full
+   */
+  public boolean reserve(ConnectionPool.PooledConnection c, int... fids) throws SQLException {
+    AtomicInteger[] counters = new AtomicInteger[fids.length];
+    for (int i = 0; i < fids.length; i++) {
+      counters[i] = fids[i] == -1 ? null : seats(c, fids[i]);
+    }
+    for (int i = 0; i < fids.length; i++) {
+      if (counters[i] != null && !take(counters[i])) {
+        // give back the seats taken so far
+        for (int j = 0; j < i; j++) {
+          if (counters[j] != null) {
+            counters[j].incrementAndGet();
+          }
+        }
+        return false;
+      }
+    }
+    for (int fid : fids) {
+      if (fid != -1) {
+        dirty.add(fid);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gives back the seats taken by {@link #reserve}. An fid of -1 is skipped.
+   */
+  public void release(ConnectionPool.PooledConnection c, int... fids) throws SQLException {
+    for (int fid : fids) {
+      if (fid != -1) {
+        seats(c, fid).incrementAndGet();
+        dirty.add(fid);
+      }
+    }
+  }
+
+  private static boolean take(AtomicInteger remaining) {
+    while (true) {
+      int current = remaining.get();
+      if (current <= 0) {
+        return false;
+      }
+      if (remaining.compareAndSet(current, current - 1)) {
+        return true;
+      }
+    }
+  }
+
+  private AtomicInteger seats(ConnectionPool.PooledConnection c, int fid) throws SQLException {
+    AtomicInteger remaining = seats.get(fid);
+    if (remaining != null) {
+      return remaining;
+    }
+    PreparedStatement stmt = c.prepare(REMAINING_SEATS);
+    stmt.clearParameters();
+    stmt.setInt(1, fid);
+    ResultSet rs = stmt.executeQuery();
+    if (!rs.next()) {
+      rs.close();
+      throw new SQLException("No flight with fid " + fid);
+    }
+    int loaded = rs.getInt(1);
+    rs.close();
+    // another session may have loaded it meanwhile, its counter wins
+    AtomicInteger raced = seats.putIfAbsent(fid, new AtomicInteger(loaded));
+    return raced == null ? seats.get(fid) : raced;
+  }
+
+  /**
+   * Writes the counters changed since the last flush to Capacities
+   */
+  public void flush() throws SQLException {
+    if (dirty.isEmpty()) {
+      return;
+    }
+    List<Integer> fids = new ArrayList<Integer>();
+    for (Iterator<Integer> it = dirty.iterator(); it.hasNext();) {
+      fids.add(it.next());
+      it.remove();
+    }
+    ConnectionPool.PooledConnection c = pool.acquire();
+    try {
+      PreparedStatement insert = c.prepare(INSERT_CAPACITY);
+      PreparedStatement update = c.prepare(UPDATE_CAPACITY);
+      for (int fid : fids) {
+        AtomicInteger remaining = seats.get(fid);
+        if (remaining == null) {
+          // cleared meanwhile
+          continue;
+        }
+        int value = remaining.get();
+        insert.setInt(1, value);
+        insert.setInt(2, fid);
+        insert.addBatch();
+        update.setInt(1, value);
+        update.setInt(2, fid);
+        update.addBatch();
+      }
+      insert.executeBatch();
+      update.executeBatch();
+    } catch (SQLException e) {
+      // try again with the next flush
+      dirty.addAll(fids);
+      throw e;
+    } finally {
+      pool.release(c);
+    }
+  }
+
+  /**
+   * Forgets every counter, for when Capacities has been emptied
+   */
+  public void clear() {
+    seats.clear();
+    dirty.clear();
+  }
+
+  /**
+   * Stops the background writer after a last flush
+   */
+  public void close() throws SQLException {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+}
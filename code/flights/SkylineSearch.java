@@ -0,0 +1,202 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Finds the Pareto-optimal direct and one-hop itineraries of a day over total
+ * flight time and total price: every itinerary that no other one beats on
+ * both without losing on either. Of itineraries with the same time and price
+ * only the first in search result order is kept.
+ *
+ * The legs are given sorted by (time, fid), as the flight index and the DIRECT
+ * query order them. The legs to every connection city and the legs from it are
+ * first reduced to their own skylines, a staircase of faster and pricier legs,
+ * since a pair with a dominated leg is dominated by the pair with the leg that
+ * dominates it. The pairs of every connection are then merged by total time
+ * with a heap holding one pair per first leg. Time only grows along the merge,
+ * so a pair is on the skyline exactly if it is cheaper than every pair before
+ * it. A first leg skips the second legs too expensive to beat the cheapest
+ * pair so far, and is dropped once even its cheapest second leg is.
+ */
+public class SkylineSearch {
+  /**
+   * A first leg and the next second leg to pair it with, or a direct flight
+   */
+  private static final class Pair {
+    final Flight first;
+    // staircase of second legs, null for a direct flight
+    final Flight[] seconds;
+    int next;
+
+    Pair(Flight first, Flight[] seconds) {
+      this.first = first;
+      this.seconds = seconds;
+    }
+
+    int time() {
+      return seconds == null ? first.time : first.time + seconds[next].time;
+    }
+
+    int price() {
+      return seconds == null ? first.price : first.price + seconds[next].price;
+    }
+
+    Itinerary itinerary() {
+      return new Itinerary(first, seconds == null ? null : seconds[next]);
+    }
+  }
+
+  /**
+   * Merge order: total time, then price, then search result order
+   */
+  private static final Comparator<Pair> MERGE_ORDER = new Comparator<Pair>() {
+    @Override
+    public int compare(Pair a, Pair b) {
+      if (a.time() != b.time()) {
+        return a.time() < b.time() ? -1 : 1;
+      }
+      if (a.price() != b.price()) {
+        return a.price() < b.price() ? -1 : 1;
+      }
+      if ((a.seconds == null) != (b.seconds == null)) {
+        return a.seconds == null ? -1 : 1;
+      }
+      if (a.first.fid != b.first.fid) {
+        return a.first.fid < b.first.fid ? -1 : 1;
+      }
+      int fid1 = a.seconds == null ? -1 : a.seconds[a.next].fid;
+      int fid2 = b.seconds == null ? -1 : b.seconds[b.next].fid;
+      return fid1 < fid2 ? -1 : (fid1 == fid2 ? 0 : 1);
+    }
+  };
+
+  private SkylineSearch() {
+  }
+
+  /**
+   * Returns the skyline of a day from an index or snapshot, sorted by total
+   * flight time, fastest and priciest first
+   */
+  public static List<Itinerary> search(FlightSource index, int originCity, int destCity, int dayOfMonth,
+      boolean directOnly) {
+    if (originCity < 0 || destCity < 0) {
+      return new ArrayList<Itinerary>();
+    }
+    return search(index.departures(originCity, dayOfMonth), index.arrivals(destCity, dayOfMonth), destCity,
+        directOnly);
+  }
+
+  /**
+   * Returns the skyline of the itineraries made of the given legs, sorted by
+   * total flight time, fastest and priciest first
+   *
+   * @param departures the flights leaving the origin, sorted by (time, fid)
+   * @param arrivals   the flights reaching the destination by origin city
+   *                   code, each sorted by (time, fid)
+   * @param directOnly if true, only direct flights are considered
+   */
+  public static List<Itinerary> search(Flight[] departures, Flight[][] arrivals, int destCity,
+      boolean directOnly) {
+    // staircases of the first legs by connection city, the direct flights
+    // under the destination
+    Map<Integer, List<Flight>> firsts = new HashMap<Integer, List<Flight>>();
+    for (Flight f : departures) {
+      if (directOnly && f.destCode != destCity) {
+        continue;
+      }
+      List<Flight> staircase = firsts.get(f.destCode);
+      if (staircase == null) {
+        staircase = new ArrayList<Flight>();
+        firsts.put(f.destCode, staircase);
+      }
+      climb(staircase, f);
+    }
+
+    PriorityQueue<Pair> open = new PriorityQueue<Pair>(Math.max(1, departures.length), MERGE_ORDER);
+    for (Map.Entry<Integer, List<Flight>> e : firsts.entrySet()) {
+      int city = e.getKey();
+      if (city == destCity) {
+        for (Flight f : e.getValue()) {
+          open.add(new Pair(f, null));
+        }
+        continue;
+      }
+      Flight[] seconds = city < arrivals.length && arrivals[city] != null ? staircase(arrivals[city]) : null;
+      if (seconds == null) {
+        continue;
+      }
+      for (Flight f : e.getValue()) {
+        open.add(new Pair(f, seconds));
+      }
+    }
+
+    List<Itinerary> skyline = new ArrayList<Itinerary>();
+    int cheapest = Integer.MAX_VALUE;
+    while (!open.isEmpty()) {
+      Pair p = open.poll();
+      if (p.price() < cheapest) {
+        skyline.add(p.itinerary());
+        cheapest = p.price();
+      }
+      if (p.seconds != null) {
+        // the first later second leg cheap enough to beat the cheapest pair
+        p.next = cheaperFrom(p.seconds, p.next + 1, cheapest - p.first.price);
+        if (p.next < p.seconds.length) {
+          open.add(p);
+        }
+      }
+    }
+    return skyline;
+  }
+
+  /**
+   * The skyline of legs sorted by (time, fid): each one faster and pricier
+   * than the next
+   */
+  private static Flight[] staircase(Flight[] legs) {
+    List<Flight> staircase = new ArrayList<Flight>();
+    for (Flight f : legs) {
+      climb(staircase, f);
+    }
+    return staircase.toArray(new Flight[staircase.size()]);
+  }
+
+  /**
+   * Adds the next leg in (time, fid) order to a staircase if it is cheaper
+   * than every leg on it, replacing the last one if it is as fast
+   */
+  private static void climb(List<Flight> staircase, Flight f) {
+    if (staircase.isEmpty()) {
+      staircase.add(f);
+      return;
+    }
+    Flight last = staircase.get(staircase.size() - 1);
+    if (f.price >= last.price) {
+      return;
+    }
+    if (f.time == last.time) {
+      staircase.set(staircase.size() - 1, f);
+    } else {
+      staircase.add(f);
+    }
+  }
+
+  /**
+   * The index of the first leg from {@code from} on that costs less than
+   * {@code limit}, the staircase's length if none. Prices decrease along a
+   * staircase.
+   */
+  private static int cheaperFrom(Flight[] staircase, int from, int limit) {
+    int lo = from;
+    int hi = staircase.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (staircase[mid].price < limit) {
+        hi = mid;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,30 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The SQL Server database of the {@code hw1.*} settings of dbconn.properties
+ */
+public class SqlServerBackend implements StorageBackend {
+  private final String connectionUrl;
+
+  public SqlServerBackend(Properties config) {
+    String serverURL = config.getProperty("hw1.server_url");
+    String dbName = config.getProperty("hw1.database_name");
+    String adminName = config.getProperty("hw1.username");
+    String password = config.getProperty("hw1.password");
+    this.connectionUrl = String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
+        dbName, adminName, password);
+  }
+
+  @Override
+  public Connection connect() throws SQLException {
+    return DriverManager.getConnection(connectionUrl);
+  }
+
+  @Override
+  public boolean supportsTransactSql() {
+    return true;
+  }
+}
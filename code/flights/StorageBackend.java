@@ -0,0 +1,41 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The database behind the application, chosen with {@code flights.backend}:
+ * {@code sqlserver} (the default) connects to the SQL Server database of the
+ * {@code hw1.*} settings, {@code embedded} runs an in-process H2 database, see
+ * {@link EmbeddedBackend}.
+ *
+ * All statements of the application are plain JDBC, so a backend only opens
+ * connections and tells which SQL Server only features may be used.
+ */
+public interface StorageBackend {
+  /**
+   * Opens a new connection to the database
+   */
+  Connection connect() throws SQLException;
+
+  /**
+   * True if the database runs T-SQL batches (variables, IF, SAVE TRANSACTION)
+   * and the OUTPUT clause, which the single round trip book, pay and cancel
+   * and the reservation id leases rely on
+   */
+  boolean supportsTransactSql();
+
+  /**
+   * Returns the backend selected by the given configuration settings
+   */
+  static StorageBackend forConfig(Properties config) {
+    String name = config.getProperty("flights.backend", "sqlserver");
+    if (name.equals("sqlserver")) {
+      return new SqlServerBackend(config);
+    }
+    if (name.equals("embedded")) {
+      return new EmbeddedBackend(config);
+    }
+    throw new IllegalArgumentException("Unknown flights.backend " + name + ", expected sqlserver or embedded");
+  }
+}
@@ -0,0 +1,147 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Maps the strings of one kind (cities or carriers) to dense int codes
+ * 0, 1, 2, ... and back.
+ *
+ * Every string is kept once, so flights encoded with the process-wide
+ * dictionaries share their city and carrier strings instead of each holding
+ * its own copies, and searches can compare and join on the codes. Codes are
+ * handed out in first-seen order and never change while the process runs.
+ *
+ * The city dictionary ignores case like the database's default collation does,
+ * so {@code seattle wa} finds the code of {@code Seattle WA}. Strings that
+ * differ only in case share a code and decode to the first one seen.
+ */
+public class StringDictionary {
+  private static final StringDictionary CITIES = new StringDictionary(true);
+  private static final StringDictionary CARRIERS = new StringDictionary(false);
+
+  private final boolean ignoreCase;
+  // codes by string, case folded if ignoreCase
+  private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+  // strings by code, replaced by a larger copy when full
+  private volatile String[] strings = new String[64];
+  private volatile int size;
+
+  StringDictionary(boolean ignoreCase) {
+    this.ignoreCase = ignoreCase;
+  }
+
+  /**
+   * The dictionary of origin and destination cities shared by the process
+   */
+  public static StringDictionary cities() {
+    return CITIES;
+  }
+
+  /**
+   * The dictionary of carrier ids shared by the process
+   */
+  public static StringDictionary carriers() {
+    return CARRIERS;
+  }
+
+  /**
+   * Seeds the carrier dictionary from the CSV file named by
+   * {@code flights.carriers_csv} (data/carriers.csv), if set, so that carriers
+   * get their codes in the file's order before any flight is loaded
+   */
+  static void seed(Properties config) throws IOException {
+    String carriersCsv = config.getProperty("flights.carriers_csv", "");
+    if (carriersCsv.isEmpty()) {
+      return;
+    }
+    Reader in = new InputStreamReader(new FileInputStream(carriersCsv), "UTF-8");
+    try {
+      CARRIERS.seed(in, 0);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the code of a string, giving it the next code if it has none yet
+   */
+  public int encode(String s) {
+    String key = key(s);
+    Integer code = codes.get(key);
+    if (code != null) {
+      return code;
+    }
+    synchronized (this) {
+      code = codes.get(key);
+      if (code != null) {
+        return code;
+      }
+      int next = size;
+      if (next == strings.length) {
+        strings = Arrays.copyOf(strings, next * 2);
+      }
+      strings[next] = s;
+      // publish the string before its code
+      size = next + 1;
+      codes.put(key, next);
+      return next;
+    }
+  }
+
+  /**
+   * Returns the code of a string, or -1 if it has none
+   */
+  public int code(String s) {
+    Integer code = codes.get(key(s));
+    return code == null ? -1 : code;
+  }
+
+  /**
+   * The key of a string in the codes map, the same for strings that are
+   * {@link String#equalsIgnoreCase} if the dictionary ignores case
+   */
+  private String key(String s) {
+    if (!ignoreCase) {
+      return s;
+    }
+    char[] chars = s.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Returns the string of a code handed out by this dictionary
+   */
+  public String decode(int code) {
+    if (code < 0 || code >= size) {
+      throw new IllegalArgumentException("No string with code " + code);
+    }
+    return strings[code];
+  }
+
+  /**
+   * Number of codes handed out so far, all codes are below it
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Encodes the given column of every line of a CSV file, such as the carrier
+   * ids of data/carriers.csv
+   */
+  public void seed(Reader csv, int column) throws IOException {
+    BufferedReader in = new BufferedReader(csv);
+    String line;
+    while ((line = in.readLine()) != null) {
+      String[] fields = FlightSnapshot.splitCsv(line);
+      if (column < fields.length && !fields[column].isEmpty()) {
+        encode(fields[column]);
+      }
+    }
+  }
+}
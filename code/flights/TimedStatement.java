@@ -0,0 +1,699 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.*;
+import java.util.Calendar;
+
+/**
+ * A prepared statement whose executions are recorded in a {@link LatencyStats}.
+ * Every other method is passed straight to the wrapped statement.
+ */
+class TimedStatement implements PreparedStatement {
+  private final PreparedStatement stmt;
+  private final LatencyStats stats;
+
+  TimedStatement(PreparedStatement stmt, LatencyStats stats) {
+    this.stmt = stmt;
+    this.stats = stats;
+  }
+
+  @Override
+  public void addBatch() throws SQLException {
+    stmt.addBatch();
+  }
+
+  @Override
+  public void clearParameters() throws SQLException {
+    stmt.clearParameters();
+  }
+
+  @Override
+  public boolean execute() throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      boolean result = stmt.execute();
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate() throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      long result = stmt.executeLargeUpdate();
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public ResultSet executeQuery() throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      ResultSet result = stmt.executeQuery();
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public int executeUpdate() throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      int result = stmt.executeUpdate();
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public ResultSetMetaData getMetaData() throws SQLException {
+    return stmt.getMetaData();
+  }
+
+  @Override
+  public ParameterMetaData getParameterMetaData() throws SQLException {
+    return stmt.getParameterMetaData();
+  }
+
+  @Override
+  public void setArray(int parameterIndex, Array x) throws SQLException {
+    stmt.setArray(parameterIndex, x);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    stmt.setAsciiStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+    stmt.setAsciiStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+    stmt.setAsciiStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+    stmt.setBigDecimal(parameterIndex, x);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    stmt.setBinaryStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+    stmt.setBinaryStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+    stmt.setBinaryStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, InputStream x, long length) throws SQLException {
+    stmt.setBlob(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, InputStream x) throws SQLException {
+    stmt.setBlob(parameterIndex, x);
+  }
+
+  @Override
+  public void setBlob(int parameterIndex, Blob x) throws SQLException {
+    stmt.setBlob(parameterIndex, x);
+  }
+
+  @Override
+  public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+    stmt.setBoolean(parameterIndex, x);
+  }
+
+  @Override
+  public void setByte(int parameterIndex, byte x) throws SQLException {
+    stmt.setByte(parameterIndex, x);
+  }
+
+  @Override
+  public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+    stmt.setBytes(parameterIndex, x);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader x, int length) throws SQLException {
+    stmt.setCharacterStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+    stmt.setCharacterStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setCharacterStream(int parameterIndex, Reader x) throws SQLException {
+    stmt.setCharacterStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Reader x, long length) throws SQLException {
+    stmt.setClob(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Reader x) throws SQLException {
+    stmt.setClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setClob(int parameterIndex, Clob x) throws SQLException {
+    stmt.setClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+    stmt.setDate(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setDate(int parameterIndex, Date x) throws SQLException {
+    stmt.setDate(parameterIndex, x);
+  }
+
+  @Override
+  public void setDouble(int parameterIndex, double x) throws SQLException {
+    stmt.setDouble(parameterIndex, x);
+  }
+
+  @Override
+  public void setFloat(int parameterIndex, float x) throws SQLException {
+    stmt.setFloat(parameterIndex, x);
+  }
+
+  @Override
+  public void setInt(int parameterIndex, int x) throws SQLException {
+    stmt.setInt(parameterIndex, x);
+  }
+
+  @Override
+  public void setLong(int parameterIndex, long x) throws SQLException {
+    stmt.setLong(parameterIndex, x);
+  }
+
+  @Override
+  public void setNCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+    stmt.setNCharacterStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setNCharacterStream(int parameterIndex, Reader x) throws SQLException {
+    stmt.setNCharacterStream(parameterIndex, x);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, Reader x, long length) throws SQLException {
+    stmt.setNClob(parameterIndex, x, length);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, Reader x) throws SQLException {
+    stmt.setNClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setNClob(int parameterIndex, NClob x) throws SQLException {
+    stmt.setNClob(parameterIndex, x);
+  }
+
+  @Override
+  public void setNString(int parameterIndex, String x) throws SQLException {
+    stmt.setNString(parameterIndex, x);
+  }
+
+  @Override
+  public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+    stmt.setNull(parameterIndex, sqlType, typeName);
+  }
+
+  @Override
+  public void setNull(int parameterIndex, int sqlType) throws SQLException {
+    stmt.setNull(parameterIndex, sqlType);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+    stmt.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+    stmt.setObject(parameterIndex, x, targetSqlType);
+  }
+
+  @Override
+  public void setObject(int parameterIndex, Object x) throws SQLException {
+    stmt.setObject(parameterIndex, x);
+  }
+
+  @Override
+  public void setRef(int parameterIndex, Ref x) throws SQLException {
+    stmt.setRef(parameterIndex, x);
+  }
+
+  @Override
+  public void setRowId(int parameterIndex, RowId x) throws SQLException {
+    stmt.setRowId(parameterIndex, x);
+  }
+
+  @Override
+  public void setSQLXML(int parameterIndex, SQLXML x) throws SQLException {
+    stmt.setSQLXML(parameterIndex, x);
+  }
+
+  @Override
+  public void setShort(int parameterIndex, short x) throws SQLException {
+    stmt.setShort(parameterIndex, x);
+  }
+
+  @Override
+  public void setString(int parameterIndex, String x) throws SQLException {
+    stmt.setString(parameterIndex, x);
+  }
+
+  @Override
+  public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+    stmt.setTime(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setTime(int parameterIndex, Time x) throws SQLException {
+    stmt.setTime(parameterIndex, x);
+  }
+
+  @Override
+  public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+    stmt.setTimestamp(parameterIndex, x, cal);
+  }
+
+  @Override
+  public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+    stmt.setTimestamp(parameterIndex, x);
+  }
+
+  @Override
+  public void setURL(int parameterIndex, URL x) throws SQLException {
+    stmt.setURL(parameterIndex, x);
+  }
+
+  @Override
+  @Deprecated
+  public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+    stmt.setUnicodeStream(parameterIndex, x, length);
+  }
+
+  @Override
+  public void addBatch(String sql) throws SQLException {
+    stmt.addBatch(sql);
+  }
+
+  @Override
+  public void cancel() throws SQLException {
+    stmt.cancel();
+  }
+
+  @Override
+  public void clearBatch() throws SQLException {
+    stmt.clearBatch();
+  }
+
+  @Override
+  public void clearWarnings() throws SQLException {
+    stmt.clearWarnings();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    stmt.close();
+  }
+
+  @Override
+  public void closeOnCompletion() throws SQLException {
+    stmt.closeOnCompletion();
+  }
+
+  @Override
+  public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      boolean result = stmt.execute(sql, columnIndexes);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      boolean result = stmt.execute(sql, columnNames);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      boolean result = stmt.execute(sql, autoGeneratedKeys);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public boolean execute(String sql) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      boolean result = stmt.execute(sql);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public int[] executeBatch() throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      int[] result = stmt.executeBatch();
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public long[] executeLargeBatch() throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      long[] result = stmt.executeLargeBatch();
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      long result = stmt.executeLargeUpdate(sql, columnIndexes);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      long result = stmt.executeLargeUpdate(sql, columnNames);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      long result = stmt.executeLargeUpdate(sql, autoGeneratedKeys);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public long executeLargeUpdate(String sql) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      long result = stmt.executeLargeUpdate(sql);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public ResultSet executeQuery(String sql) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      ResultSet result = stmt.executeQuery(sql);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      int result = stmt.executeUpdate(sql, columnIndexes);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      int result = stmt.executeUpdate(sql, columnNames);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      int result = stmt.executeUpdate(sql, autoGeneratedKeys);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public int executeUpdate(String sql) throws SQLException {
+    long start = System.nanoTime();
+    boolean error = true;
+    try {
+      int result = stmt.executeUpdate(sql);
+      error = false;
+      return result;
+    } finally {
+      stats.record(System.nanoTime() - start, error);
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return stmt.getConnection();
+  }
+
+  @Override
+  public int getFetchDirection() throws SQLException {
+    return stmt.getFetchDirection();
+  }
+
+  @Override
+  public int getFetchSize() throws SQLException {
+    return stmt.getFetchSize();
+  }
+
+  @Override
+  public ResultSet getGeneratedKeys() throws SQLException {
+    return stmt.getGeneratedKeys();
+  }
+
+  @Override
+  public int getMaxFieldSize() throws SQLException {
+    return stmt.getMaxFieldSize();
+  }
+
+  @Override
+  public int getMaxRows() throws SQLException {
+    return stmt.getMaxRows();
+  }
+
+  @Override
+  public boolean getMoreResults() throws SQLException {
+    return stmt.getMoreResults();
+  }
+
+  @Override
+  public boolean getMoreResults(int current) throws SQLException {
+    return stmt.getMoreResults(current);
+  }
+
+  @Override
+  public int getQueryTimeout() throws SQLException {
+    return stmt.getQueryTimeout();
+  }
+
+  @Override
+  public ResultSet getResultSet() throws SQLException {
+    return stmt.getResultSet();
+  }
+
+  @Override
+  public int getResultSetConcurrency() throws SQLException {
+    return stmt.getResultSetConcurrency();
+  }
+
+  @Override
+  public int getResultSetHoldability() throws SQLException {
+    return stmt.getResultSetHoldability();
+  }
+
+  @Override
+  public int getResultSetType() throws SQLException {
+    return stmt.getResultSetType();
+  }
+
+  @Override
+  public int getUpdateCount() throws SQLException {
+    return stmt.getUpdateCount();
+  }
+
+  @Override
+  public SQLWarning getWarnings() throws SQLException {
+    return stmt.getWarnings();
+  }
+
+  @Override
+  public boolean isCloseOnCompletion() throws SQLException {
+    return stmt.isCloseOnCompletion();
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return stmt.isClosed();
+  }
+
+  @Override
+  public boolean isPoolable() throws SQLException {
+    return stmt.isPoolable();
+  }
+
+  @Override
+  public void setCursorName(String name) throws SQLException {
+    stmt.setCursorName(name);
+  }
+
+  @Override
+  public void setEscapeProcessing(boolean enable) throws SQLException {
+    stmt.setEscapeProcessing(enable);
+  }
+
+  @Override
+  public void setFetchDirection(int direction) throws SQLException {
+    stmt.setFetchDirection(direction);
+  }
+
+  @Override
+  public void setFetchSize(int rows) throws SQLException {
+    stmt.setFetchSize(rows);
+  }
+
+  @Override
+  public void setMaxFieldSize(int max) throws SQLException {
+    stmt.setMaxFieldSize(max);
+  }
+
+  @Override
+  public void setMaxRows(int max) throws SQLException {
+    stmt.setMaxRows(max);
+  }
+
+  @Override
+  public void setPoolable(boolean poolable) throws SQLException {
+    stmt.setPoolable(poolable);
+  }
+
+  @Override
+  public void setQueryTimeout(int seconds) throws SQLException {
+    stmt.setQueryTimeout(seconds);
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    return iface.isInstance(this) ? iface.cast(this) : stmt.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this) || stmt.isWrapperFor(iface);
+  }
+}
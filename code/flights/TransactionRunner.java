@@ -0,0 +1,172 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs units of work that may fail because of concurrent transactions, and
+ * retries them.
+ *
+ * Deadlock victims, serialization failures and lock timeouts are retried with
+ * an exponential backoff with full jitter (a random delay up to
+ * {@code baseDelay * 2^attempt}, capped at {@code maxDelay}) until the attempt
+ * budget is spent. Any other error fails at once. Attempts, retries and
+ * failures are counted per transaction type.
+ */
+public class TransactionRunner {
+  // SQL Server errors: deadlock victim, lock request timeout, snapshot
+  // isolation update conflicts
+  private static final int DEADLOCK = 1205;
+  private static final int LOCK_TIMEOUT = 1222;
+  private static final int SNAPSHOT_CONFLICT = 3960;
+  private static final int SNAPSHOT_CONFLICT_DDL = 3961;
+  // H2 (embedded backend): lock timeout
+  private static final int H2_LOCK_TIMEOUT = 50200;
+
+  private static final AtomicReference<TransactionRunner> SHARED = new AtomicReference<TransactionRunner>();
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+  /**
+   * A unit of work, run in its own transaction by the caller
+   */
+  public interface Work<T> {
+    T run() throws SQLException;
+  }
+
+  /**
+   * Attempts, retries and failures of one transaction type
+   */
+  public static class Counters {
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    public long getAttempts() {
+      return attempts.get();
+    }
+
+    public long getRetries() {
+      return retries.get();
+    }
+
+    public long getFailures() {
+      return failures.get();
+    }
+  }
+
+  public TransactionRunner(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Returns the runner shared by all sessions of this process, configured by
+   * the first caller's {@code flights.retry_*} settings.
+   */
+  static TransactionRunner shared(Properties config) {
+    TransactionRunner runner = SHARED.get();
+    if (runner == null) {
+      int attempts = Integer.parseInt(config.getProperty("flights.retry_attempts", "5"));
+      long base = Long.parseLong(config.getProperty("flights.retry_base_ms", "10"));
+      long max = Long.parseLong(config.getProperty("flights.retry_max_ms", "1000"));
+      SHARED.compareAndSet(null, new TransactionRunner(attempts, base, max));
+      runner = SHARED.get();
+    }
+    return runner;
+  }
+
+  /**
+   * Runs the work, retrying it while it fails with a retryable error and
+   * attempts are left. The work must undo its own effects when it fails.
+   *
+   * @param type transaction type the attempts are counted under
+   */
+  public <T> T run(String type, Work<T> work) throws SQLException {
+    Counters c = counters(type);
+    for (int attempt = 0; ; attempt++) {
+      c.attempts.incrementAndGet();
+      try {
+        return work.run();
+      } catch (SQLException e) {
+        if (attempt + 1 >= maxAttempts || !isRetryable(e)) {
+          c.failures.incrementAndGet();
+          throw e;
+        }
+        c.retries.incrementAndGet();
+        backoff(attempt);
+      }
+    }
+  }
+
+  private void backoff(int attempt) throws SQLException {
+    long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 30));
+    if (bound <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting to retry", e);
+    }
+  }
+
+  /**
+   * True if the error, or one chained to it, means the transaction lost a race
+   * with another one and can simply be run again.
+   */
+  public static boolean isRetryable(SQLException e) {
+    for (Throwable t = e; t != null; t = next(t)) {
+      if (t instanceof SQLException) {
+        SQLException s = (SQLException) t;
+        int code = s.getErrorCode();
+        if (code == DEADLOCK || code == LOCK_TIMEOUT || code == SNAPSHOT_CONFLICT || code == SNAPSHOT_CONFLICT_DDL
+            || code == H2_LOCK_TIMEOUT) {
+          return true;
+        }
+        // serialization failure, deadlock (standard and PostgreSQL style)
+        String state = s.getSQLState();
+        if ("40001".equals(state) || "40P01".equals(state)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static Throwable next(Throwable t) {
+    if (t instanceof SQLException && ((SQLException) t).getNextException() != null) {
+      return ((SQLException) t).getNextException();
+    }
+    return t.getCause() == t ? null : t.getCause();
+  }
+
+  /**
+   * Counters of the given transaction type
+   */
+  public Counters counters(String type) {
+    Counters c = counters.get(type);
+    if (c == null) {
+      Counters created = new Counters();
+      c = counters.putIfAbsent(type, created);
+      if (c == null) {
+        c = created;
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Counters of every transaction type run so far, by type name
+   */
+  public Map<String, Counters> allCounters() {
+    return new TreeMap<String, Counters>(counters);
+  }
+}
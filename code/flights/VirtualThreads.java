@@ -0,0 +1,43 @@
+package edu.uw.cs;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Access to virtual threads without requiring a Java 21 build.
+ *
+ * The application targets Java 8, so the virtual thread API is looked up
+ * reflectively. On older runtimes {@link #newPerTaskExecutor()} returns null
+ * and callers fall back to platform threads.
+ */
+final class VirtualThreads {
+  private static final Method NEW_PER_TASK_EXECUTOR = lookup();
+
+  private VirtualThreads() {
+  }
+
+  private static Method lookup() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns an executor starting a new virtual thread per task, or null if the
+   * running JVM has no virtual threads.
+   */
+  static ExecutorService newPerTaskExecutor() {
+    if (NEW_PER_TASK_EXECUTOR == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) NEW_PER_TASK_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (InvocationTargetException e) {
+      return null;
+    }
+  }
+}
@@ -1,6 +1,8 @@
 CREATE TABLE Users (
   username VARCHAR(20) NOT NULL PRIMARY KEY,
-  password VARCHAR(20),
+  -- salted PBKDF2 hash of the password, see PasswordHasher
+  password VARBINARY(16),
+  salt VARBINARY(16),
   balance INT
   );
 
@@ -23,3 +25,54 @@ CREATE TABLE Reservations (
   );
 
 
+-- Legs of a reservation after its second one, numbered from 3
+CREATE TABLE ReservationLegs (
+  rid INT NOT NULL,
+  leg INT NOT NULL,
+  fid INT NOT NULL,
+  PRIMARY KEY (rid, leg)
+  );
+
+
+-- Next unused value of each id sequence, leased in blocks by the application
+CREATE TABLE Sequences (
+  name VARCHAR(20) NOT NULL PRIMARY KEY,
+  next_value INT
+  );
+
+
+
+
+-- Best itineraries of every (origin, destination, day), see BestItineraries.
+-- Direct (legs = 1) and one-hop (legs = 2) itineraries are numbered apart by
+-- slot, in search result order.
+CREATE TABLE BestItineraries (
+  origin_city VARCHAR(34) NOT NULL,
+  dest_city VARCHAR(34) NOT NULL,
+  day_of_month INT NOT NULL,
+  legs INT NOT NULL,
+  slot INT NOT NULL,
+  fid1 INT NOT NULL,
+  fid2 INT,
+  PRIMARY KEY (origin_city, dest_city, day_of_month, legs, slot)
+  );
+
+
+-- New rows of BestItineraries while it is rebuilt, swapped in at once
+CREATE TABLE BestItinerariesStaging (
+  origin_city VARCHAR(34) NOT NULL,
+  dest_city VARCHAR(34) NOT NULL,
+  day_of_month INT NOT NULL,
+  legs INT NOT NULL,
+  slot INT NOT NULL,
+  fid1 INT NOT NULL,
+  fid2 INT,
+  PRIMARY KEY (origin_city, dest_city, day_of_month, legs, slot)
+  );
+
+
+-- Number of itineraries of each kind kept per key in BestItineraries, no row
+-- until it is built
+CREATE TABLE BestItineraryDepth (
+  depth INT NOT NULL
+  );
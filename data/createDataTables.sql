@@ -0,0 +1,41 @@
+-- Tables of the flights data described in data_schema.txt, filled by
+-- data_ingestion.txt or by the CsvIngest tool
+
+CREATE TABLE Carriers (
+  cid VARCHAR(7) NOT NULL PRIMARY KEY,
+  name VARCHAR(83)
+  );
+
+
+CREATE TABLE Months (
+  mid INT NOT NULL PRIMARY KEY,
+  month VARCHAR(9)
+  );
+
+
+CREATE TABLE Weekdays (
+  did INT NOT NULL PRIMARY KEY,
+  day_of_week VARCHAR(9)
+  );
+
+
+CREATE TABLE Flights (
+  fid INT NOT NULL PRIMARY KEY,
+  month_id INT,
+  day_of_month INT,
+  day_of_week_id INT,
+  carrier_id VARCHAR(7),
+  flight_num INT,
+  origin_city VARCHAR(34),
+  origin_state VARCHAR(47),
+  dest_city VARCHAR(34),
+  dest_state VARCHAR(46),
+  departure_delay INT,
+  taxi_out INT,
+  arrival_delay INT,
+  canceled INT,
+  actual_time INT,
+  distance INT,
+  capacity INT,
+  price INT
+  );